@@ -0,0 +1,203 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.Console;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings shared by all preprocessor tasks.
+ * They are read lazily from the extension, and resolved before the task
+ * executes, so the tasks never need the project while executing.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class AbstractPreprocessorTask extends DefaultTask {
+
+    /**
+     * Map of variables
+     */
+    private final MapProperty<String, Object> vars;
+
+    /**
+     * Directories where included files are searched
+     */
+    private final ConfigurableFileCollection includeDirs;
+
+    /**
+     * Tokens replaced in active lines
+     */
+    private final MapProperty<String, String> tokens;
+
+    /**
+     * Extensions of the text files where tokens are replaced
+     */
+    private final SetProperty<String> textExtensions;
+
+    /**
+     * Enable logging to console while preprocessing files
+     */
+    private final Property<Boolean> verbose;
+
+    /**
+     * Remember files without directives in extended attributes
+     */
+    private final Property<Boolean> xattrCache;
+
+    /**
+     * Worker threads shared with the other preprocessor tasks
+     */
+    private final Property<PreprocessorPoolService> poolService;
+
+
+    public AbstractPreprocessorTask() {
+        this.vars = getProject().getObjects().mapProperty(String.class, Object.class);
+        this.includeDirs = getProject().files();
+        this.tokens = getProject().getObjects().mapProperty(String.class, String.class);
+        this.textExtensions = getProject().getObjects().setProperty(String.class).convention(Preprocessor.TEXT_EXTENSIONS);
+        this.verbose = getProject().getObjects().property(Boolean.class).convention(false);
+        this.xattrCache = getProject().getObjects().property(Boolean.class).convention(false);
+        this.poolService = getProject().getObjects().property(PreprocessorPoolService.class);
+    }
+
+    @Input
+    public MapProperty<String, Object> getVars() {
+        return vars;
+    }
+
+    public void setVars(Map<String, Object> vars) {
+        this.vars.set(vars);
+    }
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public ConfigurableFileCollection getIncludeDirs() {
+        return includeDirs;
+    }
+
+    @Input
+    public MapProperty<String, String> getTokens() {
+        return tokens;
+    }
+
+    public void setTokens(Map<String, String> tokens) {
+        this.tokens.set(tokens);
+    }
+
+    @Input
+    public SetProperty<String> getTextExtensions() {
+        return textExtensions;
+    }
+
+    @Console
+    public Property<Boolean> getVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose.set(verbose);
+    }
+
+    // Does not change the processed files
+    @Internal
+    public Property<Boolean> getXattrCache() {
+        return xattrCache;
+    }
+
+    @Internal
+    public Property<PreprocessorPoolService> getPoolService() {
+        return poolService;
+    }
+
+    /**
+     * Read the settings of the extension, once the build script is evaluated
+     *
+     * @param extension the extension
+     */
+    public void configure(PreprocessorExtension extension) {
+        vars.set(getProject().provider(extension::getVars));
+        includeDirs.from((Callable<List<File>>) extension::getIncludeDirs);
+        tokens.set(getProject().provider(extension::getTokens));
+        textExtensions.set(getProject().provider(extension::getTextExtensions));
+        verbose.set(getProject().provider(extension::getVerbose));
+        xattrCache.set(getProject().provider(extension::getXattrCache));
+    }
+
+    protected Preprocessor createPreprocessor(boolean remove) {
+        Preprocessor preprocessor = new Preprocessor(vars.get(), remove, new ArrayList<>(includeDirs.getFiles()), tokens.get());
+        preprocessor.setTextExtensions(textExtensions.get());
+        return withCache(preprocessor);
+    }
+
+    // Sources keep their tokens, they are only replaced in processed copies
+    protected Preprocessor createInPlacePreprocessor() {
+        return withCache(new Preprocessor(vars.get(), false, new ArrayList<>(includeDirs.getFiles())));
+    }
+
+    private Preprocessor withCache(Preprocessor preprocessor) {
+        if (xattrCache.get()) {
+            preprocessor.setPassThroughCache(new PassThroughCache());
+        }
+        return preprocessor;
+    }
+
+    // The shared pool, or the common pool when the task is used on its own
+    protected ForkJoinPool getPool() {
+        return poolService.isPresent() ? poolService.get().getPool() : ForkJoinPool.commonPool();
+    }
+
+    // Skip the same files as Gradle file trees
+    protected SourceTreeWalker createWalker() {
+        return new SourceTreeWalker(getPool(), Arrays.asList(DirectoryScanner.getDefaultExcludes()));
+    }
+
+    // Files are read, evaluated and written in separate stages, evaluated by the shared pool
+    protected PreprocessorPipeline createPipeline() {
+        return new PreprocessorPipeline(getPool(), PreprocessorPipeline.DEFAULT_IO_THREADS, PreprocessorPipeline.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    // Print out a string if verbose is enabled
+    protected void log(String msg) {
+        if (verbose.get()) {
+            System.out.println(msg);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A variable computed the first time it is needed.
+ * The value is computed once, even when several threads or tasks reference it at the same time.
+ * When serialized, for example as a task input or in the configuration cache, it is replaced by its value,
+ * so variables of a task are all computed when its inputs are fingerprinted.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class LazyVar implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Compute the value of a variable
+     */
+    public interface Source {
+        /**
+         * @param vars the other variables, to derive a variable from them
+         * @return the value of the variable
+         */
+        Object resolve(Map<String, Object> vars) throws Exception;
+    }
+
+    private transient Source source;
+    private transient Map<String, Object> vars;
+    private transient boolean resolving;
+    private volatile boolean resolved;
+    private Object value;
+
+    /**
+     * @param vars   the variables this variable is part of
+     * @param source computes the value
+     */
+    public LazyVar(Map<String, Object> vars, Source source) {
+        this.vars = vars;
+        this.source = source;
+    }
+
+    public Object get() {
+        if (!resolved) {
+            synchronized (this) {
+                if (!resolved) {
+                    if (resolving) {
+                        throw new IllegalStateException("Variable depends on itself");
+                    }
+                    resolving = true;
+                    try {
+                        value = source.resolve(resolving(vars));
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to compute variable", e);
+                    } finally {
+                        resolving = false;
+                    }
+                    // Free what was needed to compute the value
+                    source = null;
+                    vars = null;
+                    resolved = true;
+                }
+            }
+        }
+        return value;
+    }
+
+    private Object writeReplace() {
+        return get();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+
+    /**
+     * @return the value of a variable, computed if needed
+     */
+    public static Object resolve(Object value) {
+        return value instanceof LazyVar ? ((LazyVar) value).get() : value;
+    }
+
+    /**
+     * @return a view of the variables where lazy variables are computed when they are read
+     */
+    public static Map<String, Object> resolving(Map<String, Object> vars) {
+        return new AbstractMap<String, Object>() {
+            @Override
+            public Object get(Object key) {
+                return resolve(vars.get(key));
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return vars.containsKey(key);
+            }
+
+            @Override
+            public Set<Entry<String, Object>> entrySet() {
+                return new AbstractSet<Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Entry<String, Object>> iterator() {
+                        Iterator<Entry<String, Object>> entries = vars.entrySet().iterator();
+                        return new Iterator<Entry<String, Object>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, Object> next() {
+                                Entry<String, Object> entry = entries.next();
+                                return new SimpleImmutableEntry<>(entry.getKey(), resolve(entry.getValue()));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return vars.size();
+                    }
+                };
+            }
+        };
+    }
+}
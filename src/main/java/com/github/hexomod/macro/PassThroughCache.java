@@ -0,0 +1,140 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Remember, in an extended attribute of the file itself, that a file has no directives and is processed as is.
+ * The attribute survives a clean build, so such files are then passed through without being decoded.
+ * The attribute holds the size, the modification time and the hash of the content:
+ * the file is trusted on its size and time, or on its hash when only its time changed.
+ * Only used on Linux, and disabled on the first file system without extended attributes.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PassThroughCache {
+
+    /**
+     * Name of the attribute, stored as user.macro.passthrough
+     */
+    public static final String ATTRIBUTE = "macro.passthrough";
+
+    private volatile boolean supported;
+
+    public PassThroughCache() {
+        this.supported = System.getProperty("os.name", "").startsWith("Linux");
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * @param file the file to check
+     * @return true if the file is known to have no directives
+     */
+    public boolean isPassThrough(File file) {
+        if (!supported) {
+            return false;
+        }
+        try {
+            Path path = file.toPath();
+            UserDefinedFileAttributeView view = getView(path);
+            if (view == null || !view.list().contains(ATTRIBUTE)) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(ATTRIBUTE));
+            view.read(ATTRIBUTE, buffer);
+            String[] fields = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).split(" ");
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (fields.length != 3 || Long.parseLong(fields[0]) != attrs.size()) {
+                return false;
+            }
+            if (Long.parseLong(fields[1]) == attrs.lastModifiedTime().toMillis()) {
+                return true;
+            }
+            // Only touched, like by a checkout restoring the same content
+            if (fields[2].equals(PreprocessorManifest.hash(file))) {
+                write(view, attrs.size(), attrs.lastModifiedTime().toMillis(), fields[2]);
+                return true;
+            }
+            return false;
+        } catch (IOException | RuntimeException e) {
+            disable(e);
+            return false;
+        }
+    }
+
+    /**
+     * Remember that a file has no directives
+     *
+     * @param file    the file
+     * @param content the content of the file, as read
+     */
+    public void record(File file, byte[] content) {
+        if (!supported) {
+            return;
+        }
+        try {
+            Path path = file.toPath();
+            UserDefinedFileAttributeView view = getView(path);
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            // The file changed since it was read
+            if (view == null || attrs.size() != content.length) {
+                return;
+            }
+            write(view, attrs.size(), attrs.lastModifiedTime().toMillis(), PreprocessorManifest.hash(content));
+        } catch (IOException | RuntimeException e) {
+            disable(e);
+        }
+    }
+
+    private UserDefinedFileAttributeView getView(Path path) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            supported = false;
+        }
+        return view;
+    }
+
+    private void write(UserDefinedFileAttributeView view, long size, long lastModified, String hash) throws IOException {
+        view.write(ATTRIBUTE, StandardCharsets.US_ASCII.encode(size + " " + lastModified + " " + hash));
+    }
+
+    // Extended attributes are not supported by the file system, or not allowed
+    private void disable(Exception e) {
+        if (e instanceof IOException && !(e instanceof NoSuchFileException)) {
+            supported = false;
+        }
+    }
+}
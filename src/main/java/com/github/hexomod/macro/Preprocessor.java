@@ -25,13 +25,37 @@ package com.github.hexomod.macro;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +68,9 @@ public class Preprocessor {
         put("else", "//#else");
         put("elseif", "//#elseif");
         put("endif", "//#endif");
+        put("fileif", "//#file-if");
+        put("include", "//#include");
+        put("endinclude", "//#endinclude");
         put("comment", "///");
     }};
 
@@ -53,56 +80,167 @@ public class Preprocessor {
         put("else", "##else");
         put("elseif", "##elseif");
         put("endif", "##endif");
+        put("fileif", "##file-if");
+        put("include", "##include");
+        put("endinclude", "##endinclude");
         put("comment", "###");
     }};
 
-    static Map<String, Map<String, String>> EXTENSION_KEYWORDS = new HashMap<String, Map<String, String>>() {{
+    static final Map<String, Map<String, String>> EXTENSION_KEYWORDS = new HashMap<String, Map<String, String>>() {{
         put("java", SLASH_KEYWORDS);
         put("gradle", SLASH_KEYWORDS);
         put("yaml", HASH_KEYWORDS);
         put("yml", HASH_KEYWORDS);
     }};
 
+    /**
+     * Extensions of the text files where tokens are replaced, besides the ones with known keywords
+     */
+    public static final Set<String> TEXT_EXTENSIONS = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "properties", "txt", "json", "xml", "md", "cfg", "conf", "ini", "toml", "mcmeta", "lang", "html", "csv")));
+
+    /**
+     * Name of the file holding the condition of its directory
+     */
+    public static final String DIRECTORY_DIRECTIVE = ".macro-if";
+
+    /**
+     * Prefix of the temporary files written next to the files processed in place, skipped by directory walks
+     */
+    static final String TEMP_PREFIX = ".macro-preprocessor-";
+
+    /**
+     * Maximum number of bytes read to find a file level directive
+     */
+    static final int HEADER_SIZE = 1024;
+
+    /**
+     * Files larger than this number of bytes are split in chunks processed in parallel
+     */
+    static final long PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * Minimum number of chars of a chunk
+     */
+    static final int CHUNK_SIZE = 512 * 1024;
+
+    static final Pattern EXPRESSION_PATTERN = Pattern.compile("(.+)(<=|>=|==|!=|<|>)(.+)");
+
     private final Map<String, Object> vars;
     private final boolean remove;
 
+    /**
+     * Parsed operands and evaluated conditions
+     */
+    private final Map<String, Object> operands = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> conditions = new ConcurrentHashMap<>();
+
+    /**
+     * Directories where included fragments are searched
+     */
+    private final List<File> includeDirs;
+
+    /**
+     * Tokens replaced in active lines
+     */
+    private final TokenReplacer tokens;
+
+    /**
+     * Extensions of the text files where tokens are replaced
+     */
+    private Set<String> textExtensions = TEXT_EXTENSIONS;
+
+    /**
+     * Files known to have no directives, or null
+     */
+    private PassThroughCache passThroughCache;
+
+    /**
+     * Processed fragments, and files including each fragment
+     */
+    private final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+    private final Map<File, Set<File>> includers = new ConcurrentHashMap<>();
+
     public Preprocessor(Map<String, Object> vars) {
         this(vars, false);
     }
 
     public Preprocessor(Map<String, Object> vars, boolean remove) {
+        this(vars, remove, Collections.emptyList());
+    }
+
+    public Preprocessor(Map<String, Object> vars, boolean remove, List<File> includeDirs) {
+        this(vars, remove, includeDirs, Collections.emptyMap());
+    }
+
+    public Preprocessor(Map<String, Object> vars, boolean remove, List<File> includeDirs, Map<String, ?> tokens) {
         this.vars = vars;
         this.remove = remove;
+        this.includeDirs = includeDirs;
+        this.tokens = tokens.isEmpty() ? TokenReplacer.EMPTY : new TokenReplacer(tokens);
+    }
+
+    /**
+     * Remember the files without directives, so they are later passed through without being decoded
+     *
+     * @param passThroughCache the cache, or null
+     */
+    public void setPassThroughCache(PassThroughCache passThroughCache) {
+        this.passThroughCache = passThroughCache;
+    }
+
+    /**
+     * Set the extensions of the text files where tokens are replaced.
+     * Files of other types without keywords, like binary ones, are copied as is.
+     *
+     * @param textExtensions the extensions, without the dot
+     */
+    public void setTextExtensions(Collection<String> textExtensions) {
+        this.textExtensions = new HashSet<>(textExtensions);
+    }
+
+    // Tokens are only replaced in text files
+    boolean isTextFile(String name) {
+        String extension = FilenameUtils.getExtension(name);
+        return EXTENSION_KEYWORDS.containsKey(extension) || textExtensions.contains(extension);
     }
 
     public void process(File inFile, File outFile) throws IOException {
-        Map<String, String> keywords = null;
-        // check if the file extension is a known extension
-        String fileExtension = FilenameUtils.getExtension(inFile.getName());
-        boolean known = EXTENSION_KEYWORDS.containsKey(fileExtension);
-        if (known) {
-            keywords = EXTENSION_KEYWORDS.get(fileExtension);
+        // Files decided by a directive
+        if (processDirectives(inFile, outFile)) {
+            return;
         }
-        // if the extension is not know, then try to find one of the keywords in the file
-        String fileString = FileUtils.readFileToString(inFile, StandardCharsets.UTF_8);
-        if (!known) {
-            for (String slash : SLASH_KEYWORDS.values()) {
-                if (slash != "///" && fileString.contains(slash)) {
-                    known = true;
-                    keywords = SLASH_KEYWORDS;
-                    break;
-                }
+        // Files known to have no directives are copied as is
+        if (isPassThrough(inFile)) {
+            if (!inFile.equals(outFile)) {
+                FileUtils.copyFile(inFile, outFile);
             }
+            return;
         }
-        if (!known) {
-            for (String slash : HASH_KEYWORDS.values()) {
-                if (slash != "###" && fileString.contains(slash)) {
-                    known = true;
-                    keywords = HASH_KEYWORDS;
-                    break;
+        // Content is needed to remember files without directives
+        if (passThroughCache != null && inFile.length() <= PARALLEL_THRESHOLD) {
+            byte[] content = Files.readAllBytes(inFile.toPath());
+            byte[] processed = processContent(inFile, content);
+            if (!inFile.equals(outFile)) {
+                FileUtils.writeByteArrayToFile(outFile, processed != null ? processed : content);
+            }
+            // In place, the file is replaced as a whole, never left half written
+            else if (processed != null && !Arrays.equals(processed, content)) {
+                File processFile = createTempFile(outFile);
+                try {
+                    FileUtils.writeByteArrayToFile(processFile, processed);
+                    replaceFile(processFile, outFile);
+                } catch (IOException e) {
+                    FileUtils.deleteQuietly(processFile);
+                    throw e;
                 }
             }
+            return;
         }
+        // Find the keywords to use
+        Map<String, String> keywords = getKeywords(inFile);
+        // Files without keywords only need their tokens to be replaced
+        boolean known = keywords != null || containsTokens(inFile);
         // First check if the file need to be processed
         // If not, the file is just copied to its destination
         if (!known) {
@@ -110,19 +248,34 @@ public class Preprocessor {
                 FileUtils.copyFile(inFile, outFile);
             }
         }
-        // If yes, the file is processed
+        // If yes, the file is processed line by line
         else {
-            //
+            // In place, lines are written to a temporary file which then replaces the file
+            File processFile = inFile.equals(outFile) ? createTempFile(outFile) : outFile;
             try {
-                // Convert input file to list of lines
-                List<String> lines = FileUtils.readLines(inFile, StandardCharsets.UTF_8);
-                // Process lines
-                lines = processLines(lines, keywords);
                 // Create parent folder if needed
-                FileUtils.forceMkdirParent(outFile);
-                // Write output file
-                FileUtils.writeLines(outFile, StandardCharsets.UTF_8.toString(), lines, "\n", false);
+                FileUtils.forceMkdirParent(processFile);
+                // Process lines
+                try (Reader reader = new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8);
+                     Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(processFile), StandardCharsets.UTF_8))) {
+                    if (keywords != null && inFile.length() > PARALLEL_THRESHOLD) {
+                        processChunks(new BufferedReader(reader), writer, keywords, inFile, CHUNK_SIZE);
+                    } else {
+                        process(reader, writer, keywords, inFile);
+                    }
+                }
+                if (processFile != outFile) {
+                    // In place, the file is only written if it changes
+                    if (FileUtils.contentEquals(processFile, outFile)) {
+                        FileUtils.deleteQuietly(processFile);
+                    } else {
+                        replaceFile(processFile, outFile);
+                    }
+                }
             } catch (Exception e) {
+                if (processFile != outFile) {
+                    FileUtils.deleteQuietly(processFile);
+                }
                 if (e instanceof ParserException) {
                     throw e;
                 } else {
@@ -132,28 +285,563 @@ public class Preprocessor {
         }
     }
 
+    // Next to the file, so it is moved on the same file system
+    static File createTempFile(File file) throws IOException {
+        return File.createTempFile(TEMP_PREFIX, ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
+    static void replaceFile(File tempFile, File file) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Handle the files decided without reading their content
+     *
+     * @return true if the file is done
+     */
+    boolean processDirectives(File inFile, File outFile) throws IOException {
+        // A directory directive is never part of the output
+        if (inFile.getName().equals(DIRECTORY_DIRECTIVE)) {
+            return true;
+        }
+        // A file level directive decide of the whole file from its first line
+        return processFileDirective(inFile, outFile);
+    }
+
+    /**
+     * Process the content of a file already read
+     *
+     * @return the processed content, or null if the file has no keywords and is kept as is
+     */
+    byte[] processContent(File inFile, byte[] content) {
+        return processContent(inFile.getName(), inFile, content);
+    }
+
+    // Without a file, fragments are only searched in the include directories and their includers are not recorded
+    private byte[] processContent(String name, File inFile, byte[] content) {
+        String fileString = new String(content, StandardCharsets.UTF_8);
+        Map<String, String> keywords = getKeywords(new File(name), fileString);
+        if (keywords == null && !(isTextFile(name) && tokens.find(fileString))) {
+            if (inFile != null) {
+                recordPassThrough(inFile, content, fileString, null);
+            }
+            return null;
+        }
+        StringWriter writer = new StringWriter(fileString.length());
+        try {
+            process(new StringReader(fileString), writer, keywords, inFile);
+        } catch (ParserException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to convert file " + name, e);
+        }
+        byte[] processed = writer.toString().getBytes(StandardCharsets.UTF_8);
+        if (inFile != null && Arrays.equals(processed, content)) {
+            recordPassThrough(inFile, content, fileString, keywords);
+        }
+        return processed;
+    }
+
+    /**
+     * Check if a file is known to have no directives.
+     * Tokens are not part of the verdict, so it is not used when tokens are replaced.
+     *
+     * @param inFile the file to check
+     * @return true if the file is processed as is
+     */
+    boolean isPassThrough(File inFile) {
+        return passThroughCache != null && tokens.isEmpty() && passThroughCache.isPassThrough(inFile);
+    }
+
+    // Files processed as is without any directive, whatever the vars are
+    private void recordPassThrough(File inFile, byte[] content, String fileString, Map<String, String> keywords) {
+        if (passThroughCache == null || !tokens.isEmpty() || inFile.getName().equals(DIRECTORY_DIRECTIVE)) {
+            return;
+        }
+        if (keywords == SLASH_KEYWORDS && (fileString.contains("//#") || fileString.contains(SLASH_KEYWORDS.get("comment")))) {
+            return;
+        }
+        if (keywords == HASH_KEYWORDS && fileString.contains("##")) {
+            return;
+        }
+        passThroughCache.record(inFile, content);
+    }
+
+    /**
+     * Process an UTF-8 entry of an archive, like processing a file of the same name
+     *
+     * @param name    the name of the entry
+     * @param content the content of the entry
+     * @return the processed content, the content itself if it is unchanged, or null if a file level directive drops the entry
+     */
+    public byte[] process(String name, byte[] content) {
+        // A file level directive decide of the whole entry from its first line
+        String firstLine = getFirstLine(content);
+        Map<String, String> keywords = getFileDirectiveKeywords(firstLine);
+        if (keywords != null) {
+            if (!evaluateExpression(firstLine.substring(keywords.get("fileif").length()))) {
+                return null;
+            }
+            int eol = ArrayUtils.indexOf(content, (byte) '\n');
+            return remove ? Arrays.copyOfRange(content, eol < 0 ? content.length : eol + 1, content.length) : content;
+        }
+        // The entry is not a file, its includes are not relative to it
+        byte[] processed = processContent(name, null, content);
+        return processed != null ? processed : content;
+    }
+
+    /**
+     * Process a text of the given type, without going through files.
+     * Only the current line and the directive stack are kept in memory.
+     *
+     * @param reader    the text to process
+     * @param writer    where processed lines are written, each followed by \n
+     * @param extension the type of the text, like java or yml. Text of an unknown type is copied as is.
+     */
+    public void process(Reader reader, Writer writer, String extension) throws IOException {
+        Map<String, String> keywords = EXTENSION_KEYWORDS.get(extension);
+        if (keywords == null) {
+            IOUtils.copy(reader, writer);
+            writer.flush();
+        } else {
+            process(reader, writer, keywords, null);
+        }
+    }
+
+    /**
+     * Process an UTF-8 text of the given type, without going through files.
+     *
+     * @param in        the text to process
+     * @param out       where processed lines are written
+     * @param extension the type of the text, like java or yml
+     */
+    public void process(InputStream in, OutputStream out, String extension) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        process(new InputStreamReader(in, StandardCharsets.UTF_8), writer, extension);
+    }
+
+    /**
+     * Process a text of the given type while it is read.
+     *
+     * @param reader    the text to process
+     * @param extension the type of the text, like java or yml. Text of an unknown type is read as is.
+     * @return a reader of the processed lines, each followed by \n
+     */
+    public Reader process(Reader reader, String extension) {
+        Map<String, String> keywords = EXTENSION_KEYWORDS.get(extension);
+        return keywords == null ? reader : process(reader, keywords, null);
+    }
+
+    Reader process(Reader reader, Map<String, String> keywords, File file) {
+        return new ProcessedReader(reader, keywords, file);
+    }
+
+    void process(Reader reader, Writer writer, Map<String, String> keywords, File file) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        // Lines are written as FileUtils.writeLines does, each followed by \n
+        LineProcessor processor = new LineProcessor(keywords, file, new HashSet<>(), line -> {
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                processor.process(line);
+            }
+            processor.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Check that a file is already in the state produced by processing it in place
+     *
+     * @param inFile the file to check
+     * @return true if processing the file in place would not change it
+     */
+    public boolean isProcessed(File inFile) throws IOException {
+        // Directives are left untouched in place
+        if (inFile.getName().equals(DIRECTORY_DIRECTIVE) || getFileDirectiveKeywords(getFirstLine(readHeader(inFile))) != null) {
+            return true;
+        }
+        // Files without keywords are left untouched
+        Map<String, String> keywords = getKeywords(inFile);
+        if (keywords == null) {
+            return true;
+        }
+        // Compare processed lines with the file content, as they would be written, up to the first difference
+        try (Reader file = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8));
+             Reader processed = new ProcessedReader(new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8), keywords, inFile)) {
+            return IOUtils.contentEquals(file, processed);
+        }
+    }
+
+    Map<String, String> getKeywords(File inFile) throws IOException {
+        // check if the file extension is a known extension
+        String fileExtension = FilenameUtils.getExtension(inFile.getName());
+        if (EXTENSION_KEYWORDS.containsKey(fileExtension)) {
+            return EXTENSION_KEYWORDS.get(fileExtension);
+        }
+        // if the extension is not know, then look for the keywords line by line
+        // slash keywords anywhere in the file win over hash keywords
+        boolean hash = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Map<String, String> keywords = getKeywords(inFile, line);
+                if (keywords == SLASH_KEYWORDS) {
+                    return SLASH_KEYWORDS;
+                }
+                hash |= keywords == HASH_KEYWORDS;
+            }
+        }
+        return hash ? HASH_KEYWORDS : null;
+    }
+
+    Map<String, String> getKeywords(File inFile, String fileString) {
+        // check if the file extension is a known extension
+        String fileExtension = FilenameUtils.getExtension(inFile.getName());
+        if (EXTENSION_KEYWORDS.containsKey(fileExtension)) {
+            return EXTENSION_KEYWORDS.get(fileExtension);
+        }
+        // if the extension is not know, then try to find one of the keywords in the file
+        for (String slash : SLASH_KEYWORDS.values()) {
+            if (slash != "///" && fileString.contains(slash)) {
+                return SLASH_KEYWORDS;
+            }
+        }
+        for (String slash : HASH_KEYWORDS.values()) {
+            if (slash != "###" && fileString.contains(slash)) {
+                return HASH_KEYWORDS;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a text file without keywords has tokens to replace.
+     * Other files, binary ones included, are copied as is.
+     *
+     * @param inFile the file to check
+     * @return true if the file contains one of the tokens
+     */
+    boolean containsTokens(File inFile) throws IOException {
+        return !tokens.isEmpty() && isTextFile(inFile.getName()) && tokens.find(FileUtils.readFileToString(inFile, StandardCharsets.UTF_8));
+    }
+
+    public boolean isDirectoryActive(File directory) throws IOException {
+        File directive = new File(directory, DIRECTORY_DIRECTIVE);
+        if (!directive.isFile()) {
+            return true;
+        }
+        return isDirectoryActive(FileUtils.readLines(directive, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Evaluate the lines of a directory directive
+     *
+     * @param lines the lines of the directive
+     * @return true if every condition is true
+     */
+    public boolean isDirectoryActive(List<String> lines) {
+        // Every condition of the directive must be true
+        for (String line : lines) {
+            String trimLine = line.trim();
+            if (trimLine.isEmpty() || trimLine.startsWith("#") || trimLine.startsWith("//")) {
+                continue;
+            }
+            if (!evaluateExpression(trimLine)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean processFileDirective(File inFile, File outFile) throws IOException {
+        // Only read the first bytes of the file
+        byte[] header = readHeader(inFile);
+        int eol = ArrayUtils.indexOf(header, (byte) '\n');
+        String firstLine = getFirstLine(header);
+        // Check if the first line is a file level directive
+        Map<String, String> keywords = getFileDirectiveKeywords(firstLine);
+        if (keywords == null) {
+            return false;
+        }
+        if (eol < 0 && inFile.length() > header.length) {
+            throw new ParserException("File directive is too long in file " + inFile);
+        }
+        // Evaluate file-if condition
+        boolean active = evaluateExpression(firstLine.substring(keywords.get("fileif").length()));
+        // In place, the file is left untouched
+        if (inFile.equals(outFile)) {
+            return true;
+        }
+        // The file is dropped from the output
+        if (!active) {
+            Files.deleteIfExists(outFile.toPath());
+        }
+        // The file is copied as is, without the directive if it must be removed
+        else {
+            transferFile(inFile, remove ? (eol < 0 ? header.length : eol + 1) : 0, outFile);
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the file level directive of a file
+     *
+     * @return the condition of the directive, or null if the file has none
+     */
+    Boolean isFileActive(File inFile) throws IOException {
+        String firstLine = getFirstLine(readHeader(inFile));
+        Map<String, String> keywords = getFileDirectiveKeywords(firstLine);
+        return keywords == null ? null : evaluateExpression(firstLine.substring(keywords.get("fileif").length()));
+    }
+
+    String getFirstLine(byte[] header) {
+        int eol = ArrayUtils.indexOf(header, (byte) '\n');
+        return new String(header, 0, eol < 0 ? header.length : eol, StandardCharsets.UTF_8).trim();
+    }
+
+    Map<String, String> getFileDirectiveKeywords(String firstLine) {
+        if (firstLine.startsWith(SLASH_KEYWORDS.get("fileif"))) {
+            return SLASH_KEYWORDS;
+        } else if (firstLine.startsWith(HASH_KEYWORDS.get("fileif"))) {
+            return HASH_KEYWORDS;
+        }
+        return null;
+    }
+
+    byte[] readHeader(File inFile) throws IOException {
+        try (InputStream in = new FileInputStream(inFile)) {
+            byte[] header = new byte[HEADER_SIZE];
+            int length = IOUtils.read(in, header);
+            return length < HEADER_SIZE ? Arrays.copyOf(header, length) : header;
+        }
+    }
+
+    void transferFile(File inFile, long position, File outFile) throws IOException {
+        // Create parent folder if needed
+        FileUtils.forceMkdirParent(outFile);
+        // Let the file system copy the bytes
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * Process a large text in chunks, on the current fork/join pool.
+     * Chunks end where no directive block is open, where the state is the same as at the start of the text,
+     * so the output is the same as processing the whole text at once.
+     */
+    void processChunks(BufferedReader reader, Writer writer, Map<String, String> keywords, File file, int chunkSize) throws IOException {
+        // Processed chunks are written in order, with a bounded number in flight
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        int maxPending = Math.max(2, 2 * pool.getParallelism());
+        Deque<ForkJoinTask<List<String>>> pending = new ArrayDeque<>();
+        List<String> chunk = new ArrayList<>();
+        int chunkLength = 0;
+        int depth = 0;
+        int included = 0;
+        boolean splittable = true;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            chunk.add(line);
+            chunkLength += line.length();
+            // Track the nesting depth as processLines does
+            String trimLine = line.trim();
+            if (included > 0) {
+                if (trimLine.startsWith(keywords.get("include"))) {
+                    included++;
+                } else if (trimLine.startsWith(keywords.get("endinclude"))) {
+                    included--;
+                }
+            } else if (trimLine.startsWith(keywords.get("include"))) {
+                included = 1;
+            } else if (trimLine.startsWith(keywords.get("if"))) {
+                depth++;
+            } else if (trimLine.startsWith(keywords.get("endif"))) {
+                // Unbalanced blocks are left to a single chunk
+                splittable &= --depth >= 0;
+            }
+            if (splittable && depth == 0 && included == 0 && chunkLength >= chunkSize) {
+                pending.add(processChunk(chunk, keywords, file));
+                chunk = new ArrayList<>();
+                chunkLength = 0;
+                if (pending.size() >= maxPending) {
+                    writeLines(pending.poll().join(), writer);
+                }
+            }
+        }
+        pending.add(processChunk(chunk, keywords, file));
+        while (!pending.isEmpty()) {
+            writeLines(pending.poll().join(), writer);
+        }
+        writer.flush();
+    }
+
+    private ForkJoinTask<List<String>> processChunk(List<String> chunk, Map<String, String> keywords, File file) {
+        return ForkJoinTask.adapt(() -> processLines(chunk, keywords, file)).fork();
+    }
+
+    private void writeLines(List<String> lines, Writer writer) throws IOException {
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Reader of processed lines, lines are processed as they are read
+     */
+    private class ProcessedReader extends Reader {
+        private final BufferedReader lines;
+        private final LineProcessor processor;
+        private final StringBuilder pending = new StringBuilder();
+        private int position = 0;
+        private boolean finished = false;
+
+        ProcessedReader(Reader reader, Map<String, String> keywords, File file) {
+            this.lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+            this.processor = new LineProcessor(keywords, file, new HashSet<>(), line -> pending.append(line).append('\n'));
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            // Process lines until some chars are available
+            while (position == pending.length() && !finished) {
+                pending.setLength(0);
+                position = 0;
+                String line = lines.readLine();
+                if (line == null) {
+                    processor.finish();
+                    finished = true;
+                } else {
+                    processor.process(line);
+                }
+            }
+            if (position == pending.length()) {
+                return -1;
+            }
+            int count = Math.min(len, pending.length() - position);
+            pending.getChars(position, position + count, cbuf, off);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+
     List<String> processLines(List<String> lines, Map<String, String> keywords) throws ParserException {
-        LinkedList<Boolean> state = new LinkedList<>();
-        LinkedList<Boolean> skips = new LinkedList<>();
-        List<String> newLines = new ArrayList<>();
-        // By default the line is considered as active
-        state.push(true);
-        skips.push(false);
+        return processLines(lines, keywords, null);
+    }
+
+    List<String> processLines(List<String> lines, Map<String, String> keywords, File file) throws ParserException {
+        return processLines(lines, keywords, file, new HashSet<>());
+    }
 
+    private List<String> processLines(List<String> lines, Map<String, String> keywords, File file, Set<File> including) throws ParserException {
+        List<String> newLines = new ArrayList<>();
+        LineProcessor processor = new LineProcessor(keywords, file, including, newLines::add);
         // Loop through all lines
         for (String line : lines) {
+            processor.process(line);
+        }
+        processor.finish();
+        return newLines;
+    }
+
+    /**
+     * Process a stream of lines, keeping only the directive stack.
+     * Processed lines are given to the output as soon as they are known.
+     */
+    private class LineProcessor {
+        private final Map<String, String> keywords;
+        private final File file;
+        private final Set<File> including;
+        private final Consumer<String> newLines;
+        private final LinkedList<Boolean> state = new LinkedList<>();
+        private final LinkedList<Boolean> skips = new LinkedList<>();
+        // Depth of the previously included lines being replaced
+        private int included = 0;
+
+        LineProcessor(Map<String, String> keywords, File file, Set<File> including, Consumer<String> newLines) {
+            this.keywords = keywords;
+            this.file = file;
+            this.including = including;
+            this.newLines = newLines;
+            // By default the line is considered as active
+            state.push(true);
+            skips.push(false);
+        }
+
+        void process(String line) throws ParserException {
+            // Without keywords, only tokens are replaced
+            if (keywords == null) {
+                newLines.accept(tokens.replace(line));
+                return;
+            }
             String trimLine = line.trim();
 
+            // Previously included lines are replaced
+            if (included > 0) {
+                if (trimLine.startsWith(keywords.get("include"))) {
+                    included++;
+                } else if (trimLine.startsWith(keywords.get("endinclude")) && --included == 0) {
+                    // Keep macro line
+                    if (!remove) newLines.accept(line);
+                }
+            }
+            // include
+            else if (trimLine.startsWith(keywords.get("include"))) {
+                // Keep macro line
+                if (!remove) newLines.accept(line);
+                // Splice the processed fragment
+                boolean active = state.getFirst();
+                for (String fragmentLine : getFragment(trimLine.substring(keywords.get("include").length()).trim(), keywords, file, including)) {
+                    if (active)
+                        newLines.accept(fragmentLine);
+                    else {
+                        if (!remove) newLines.accept(commentLine(fragmentLine, keywords));
+                    }
+                }
+                // Replace lines until endinclude
+                included = 1;
+            }
+            // endinclude without include
+            else if (trimLine.startsWith(keywords.get("endinclude"))) {
+                throw new ParserException("Unexpected " + keywords.get("endinclude") + (file != null ? " in file " + file : ""));
+            }
             // ifdef
-            if (trimLine.startsWith(keywords.get("ifdef"))) {
+            else if (trimLine.startsWith(keywords.get("ifdef"))) {
                 // Check condition
-                boolean active = this.vars.get(trimLine.substring(keywords.get("ifdef").length()).trim()) != null;
+                boolean active = LazyVar.resolve(vars.get(trimLine.substring(keywords.get("ifdef").length()).trim())) != null;
                 // Store the last active state
                 state.push(active & state.getFirst());
                 //
                 skips.push(active);
                 // Keep macro line
-                if (!remove) newLines.add(line);
+                if (!remove) newLines.accept(line);
             }
             // if
             else if (trimLine.startsWith(keywords.get("if"))) {
@@ -164,7 +852,7 @@ public class Preprocessor {
                 //
                 skips.push(active);
                 // Keep macro line
-                if (!remove) newLines.add(line);
+                if (!remove) newLines.accept(line);
             }
             // elseif
             else if (trimLine.startsWith(keywords.get("elseif"))) {
@@ -188,7 +876,7 @@ public class Preprocessor {
                     state.push(false);
                 }
                 // Keep macro line
-                if (!remove) newLines.add(line);
+                if (!remove) newLines.accept(line);
             }
             // else
             else if (trimLine.startsWith(keywords.get("else"))) {
@@ -209,7 +897,7 @@ public class Preprocessor {
                     state.push(false);
                 }
                 // Keep macro line
-                if (!remove) newLines.add(line);
+                if (!remove) newLines.accept(line);
             }
             // endif
             else if (trimLine.startsWith(keywords.get("endif"))) {
@@ -218,19 +906,149 @@ public class Preprocessor {
                 //
                 skips.pop();
                 // Keep macro line
-                if (!remove) newLines.add(line);
+                if (!remove) newLines.accept(line);
             } else {
                 // get last active state
                 boolean active = state.getFirst();
                 //
                 if (active)
-                    newLines.add(uncommentLine(line, keywords));
+                    newLines.accept(tokens.replace(uncommentLine(line, keywords)));
                 else {
-                    if (!remove) newLines.add(commentLine(line, keywords));
+                    if (!remove) newLines.accept(commentLine(line, keywords));
                 }
             }
         }
-        return newLines;
+
+        void finish() throws ParserException {
+            if (included > 0) {
+                throw new ParserException("Missing " + keywords.get("endinclude") + (file != null ? " in file " + file : ""));
+            }
+        }
+    }
+
+    List<String> getFragment(String path, Map<String, String> keywords, File file, Set<File> including) throws ParserException {
+        File fragmentFile = resolveInclude(path, file);
+        if (file != null) {
+            includers.computeIfAbsent(fragmentFile, f -> ConcurrentHashMap.newKeySet()).add(file.getAbsoluteFile());
+        }
+        // Fragments are processed once, until they or the fragments they include are modified
+        String key = fragmentFile.getPath() + "|" + keywords.get("comment");
+        Fragment fragment = fragments.get(key);
+        if (fragment == null || !fragment.isValid(fragmentFile)) {
+            if (!including.add(fragmentFile)) {
+                throw new ParserException("Recursive include of " + fragmentFile);
+            }
+            try {
+                Map<File, Stamp> stamps = new HashMap<>();
+                stamps.put(fragmentFile, new Stamp(fragmentFile));
+                List<String> lines = processLines(FileUtils.readLines(fragmentFile, StandardCharsets.UTF_8), keywords, fragmentFile, including);
+                for (File included : getIncluded(fragmentFile)) {
+                    stamps.putIfAbsent(included, new Stamp(included));
+                }
+                fragment = new Fragment(stamps, Collections.unmodifiableList(lines));
+                fragments.put(key, fragment);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to include file " + fragmentFile, e);
+            } finally {
+                including.remove(fragmentFile);
+            }
+        }
+        return fragment.lines;
+    }
+
+    File resolveInclude(String path, File file) throws ParserException {
+        List<File> candidates = new ArrayList<>();
+        // Relative to the including file first
+        if (file != null) {
+            candidates.add(new File(file.getAbsoluteFile().getParentFile(), path));
+        }
+        for (File includeDir : includeDirs) {
+            candidates.add(new File(includeDir, path));
+        }
+        for (File candidate : candidates) {
+            if (candidate.isFile()) {
+                return candidate.getAbsoluteFile().toPath().normalize().toFile();
+            }
+        }
+        throw new ParserException("Failed to find included file " + path + (file != null ? " in file " + file : ""));
+    }
+
+    /**
+     * Fragments included by a file, and by these fragments
+     *
+     * @param file the including file
+     * @return fragments included so far by this file
+     */
+    public Set<File> getIncluded(File file) {
+        Set<File> fragments = new HashSet<>();
+        LinkedList<File> pending = new LinkedList<>();
+        pending.add(file.getAbsoluteFile());
+        while (!pending.isEmpty()) {
+            File includer = pending.pop();
+            includers.forEach((fragment, files) -> {
+                if (files.contains(includer) && fragments.add(fragment)) {
+                    pending.add(fragment);
+                }
+            });
+        }
+        return fragments;
+    }
+
+    /**
+     * Files including a fragment, directly or through other fragments
+     *
+     * @param fragmentFile the included file
+     * @return files that included this fragment so far
+     */
+    public Set<File> getIncluders(File fragmentFile) {
+        Set<File> files = new LinkedHashSet<>();
+        LinkedList<File> pending = new LinkedList<>();
+        pending.add(fragmentFile.getAbsoluteFile().toPath().normalize().toFile());
+        while (!pending.isEmpty()) {
+            for (File includer : includers.getOrDefault(pending.pop(), Collections.emptySet())) {
+                if (files.add(includer)) {
+                    pending.add(includer);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Record the fragments included by a file, and by these fragments, without processing it
+     *
+     * @param file the including file
+     */
+    public void scanIncludes(File file) throws IOException {
+        scanIncludes(file.getAbsoluteFile(), new HashSet<>());
+    }
+
+    private void scanIncludes(File file, Set<File> scanned) throws IOException {
+        if (!scanned.add(file)) {
+            return;
+        }
+        Map<String, String> keywords = getKeywords(file);
+        if (keywords == null) {
+            return;
+        }
+        List<File> fragmentFiles = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimLine = line.trim();
+                if (trimLine.startsWith(keywords.get("include"))) {
+                    try {
+                        fragmentFiles.add(resolveInclude(trimLine.substring(keywords.get("include").length()).trim(), file));
+                    } catch (ParserException e) {
+                        // Reported when the file is processed
+                    }
+                }
+            }
+        }
+        for (File fragmentFile : fragmentFiles) {
+            includers.computeIfAbsent(fragmentFile, f -> ConcurrentHashMap.newKeySet()).add(file);
+            scanIncludes(fragmentFile, scanned);
+        }
     }
 
     String commentLine(String line, Map<String, String> keywords) {
@@ -268,6 +1086,21 @@ public class Preprocessor {
     }
 
     Object evaluateVariable(String var) {
+        if (var == null) {
+            return null;
+        }
+        // Variables are parsed only once
+        Object value = operands.get(var);
+        if (value == null) {
+            value = parseVariable(var);
+            if (value != null) {
+                operands.put(var, value);
+            }
+        }
+        return value;
+    }
+
+    private Object parseVariable(String var) {
         // Test if var can be converted to number
         if (NumberUtils.isCreatable(var)) {
             Object number = NumberUtils.createNumber(var);
@@ -281,15 +1114,53 @@ public class Preprocessor {
         else if ((var != null) && (var.equalsIgnoreCase("true") || var.equalsIgnoreCase("false"))) {
             return Boolean.parseBoolean(var);
         }
+        // Test if var is a version
+        else if (Version.isVersion(var)) {
+            return Version.parse(var);
+        }
         //
         else {
-            return this.vars.getOrDefault(var, var);
+            Object value = this.vars.containsKey(var) ? LazyVar.resolve(this.vars.get(var)) : var;
+            // Variables shaped like a version are compared as version
+            if (value instanceof String && Version.isVersion((String) value)) {
+                return Version.parse((String) value);
+            }
+            return value;
+        }
+    }
+
+    Version toVersion(String var, Object value) {
+        if (value instanceof Version) {
+            return (Version) value;
+        }
+        // Use the literal to not lose trailing zeros (1.10 is not 1.1)
+        if (NumberUtils.isCreatable(var)) {
+            return Version.parse(var);
         }
+        return value == null ? null : Version.parse(value.toString());
+    }
+
+    // The value of an operand read as a version, as it was written
+    private Object toPlain(String var, Object value) {
+        if (!(value instanceof Version)) {
+            return value;
+        }
+        return this.vars.containsKey(var) ? LazyVar.resolve(this.vars.get(var)) : var;
     }
 
     boolean evaluateExpression(String expr) {
         // Clean the string
         expr = expr.trim();
+        // Conditions are evaluated only once
+        Boolean result = conditions.get(expr);
+        if (result == null) {
+            result = parseExpression(expr);
+            conditions.put(expr, result);
+        }
+        return result;
+    }
+
+    private boolean parseExpression(String expr) {
         // Logical OR
         String[] parts = expr.split("\\|\\|");
         if (parts.length > 1) {
@@ -301,10 +1172,40 @@ public class Preprocessor {
             return Arrays.stream(parts).allMatch(this::evaluateExpression);
         }
         // Find expression
-        Matcher matcher = Pattern.compile("(.+)(<=|>=|==|!=|<|>)(.+)").matcher(expr);
+        Matcher matcher = EXPRESSION_PATTERN.matcher(expr);
         if (matcher.matches()) {
             Object left = evaluateVariable(matcher.group(1).trim());
             Object right = evaluateVariable(matcher.group(3).trim());
+            // Compare versions
+            Version vLeft = null;
+            Version vRight = null;
+            if (left instanceof Version || right instanceof Version) {
+                vLeft = toVersion(matcher.group(1).trim(), left);
+                vRight = toVersion(matcher.group(3).trim(), right);
+                // Otherwise compare them as before, as strings
+                if (vLeft == null || vRight == null) {
+                    left = toPlain(matcher.group(1).trim(), left);
+                    right = toPlain(matcher.group(3).trim(), right);
+                }
+            }
+            if (vLeft != null && vRight != null) {
+                int compare = vLeft.compareTo(vRight);
+                switch (matcher.group(2)) {
+                    case "<=":
+                        return compare <= 0;
+                    case ">=":
+                        return compare >= 0;
+                    case "==":
+                        return compare == 0;
+                    case "!=":
+                        return compare != 0;
+                    case "<":
+                        return compare < 0;
+                    case ">":
+                        return compare > 0;
+                }
+                return false;
+            }
             // Compare booleans
             if (left instanceof Boolean && right instanceof Boolean) {
                 boolean nLeft = (Boolean) left;
@@ -364,6 +1265,41 @@ public class Preprocessor {
     }
 
 
+    private static class Fragment {
+        // The fragment file and every fragment it includes
+        private final Map<File, Stamp> stamps;
+        private final List<String> lines;
+
+        Fragment(Map<File, Stamp> stamps, List<String> lines) {
+            this.stamps = stamps;
+            this.lines = lines;
+        }
+
+        boolean isValid(File file) {
+            for (Map.Entry<File, Stamp> stamp : stamps.entrySet()) {
+                if (!stamp.getValue().matches(stamp.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Stamp {
+        private final long lastModified;
+        private final long length;
+
+        Stamp(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+
     static class ParserException extends RuntimeException {
         ParserException(String e) {
             super(e);
@@ -0,0 +1,169 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Process all sourceSets and types of a project in a single pass.
+ * Used instead of the per sourceSet preprocessors when the aggregate setting is enabled,
+ * so small sourceSets share one snapshot and the same preprocessor caches.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+@CacheableTask
+public class PreprocessorAggregateTask extends AbstractPreprocessorTask {
+
+    public static final String TASK_ID = "macroPreprocessor";
+
+    /**
+     * Sources processed by this task, one per sourceSet and type
+     */
+    private final List<ProcessedSources> processedSources = new ArrayList<>();
+
+    @Inject
+    public PreprocessorAggregateTask() {
+    }
+
+    @Nested
+    public List<ProcessedSources> getProcessedSources() {
+        return processedSources;
+    }
+
+    /**
+     * Add the sources of a sourceSet type
+     *
+     * @param sourceDirs     the directories to process
+     * @param destinationDir the directory where the processed files are written, absent when the type is disabled
+     * @param remove         remove the directives from processed files
+     */
+    public void process(FileCollection sourceDirs, Provider<File> destinationDir, Provider<Boolean> remove) {
+        processedSources.add(new ProcessedSources(sourceDirs, destinationDir, remove));
+    }
+
+    @TaskAction
+    public void process() throws IOException, InterruptedException {
+        log("Processing files ...");
+
+        // Shared by all sources, so includes and conditions are only evaluated once
+        Preprocessor preprocessor = createPreprocessor(false);
+        Preprocessor removePreprocessor = createPreprocessor(true);
+        SourceTreeWalker walker = createWalker();
+        ForkJoinPool pool = getPool();
+
+        // Walk all source directories at the same time
+        try (PreprocessorPipeline pipeline = createPipeline()) {
+            List<ForkJoinTask<Void>> walks = new ArrayList<>();
+            for (ProcessedSources sources : processedSources) {
+                if (!sources.getDestinationDir().isPresent()) {
+                    continue;
+                }
+                // Outputs mirror the sources, without stale files
+                final File destination = sources.getDestinationDir().get();
+                FileUtils.forceMkdir(destination);
+                FileUtils.cleanDirectory(destination);
+
+                final Preprocessor sourcesPreprocessor = sources.getRemove().get() ? removePreprocessor : preprocessor;
+                for (File sourceDirectory : sources.getSourceDirs().getFiles()) {
+                    log("    Processing directory : " + sourceDirectory);
+                    final Path sourcePath = sourceDirectory.toPath();
+                    final Path destinationPath = destination.toPath();
+                    walks.add(pool.submit(() -> {
+                        walker.walk(sourcePath, directory -> sourcesPreprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+                            log("    Processing " + sourceFile.toString());
+                            File processFile = destinationPath.resolve(sourcePath.relativize(sourceFile)).toFile();
+                            pipeline.submit(sourcesPreprocessor, sourceFile.toFile(), processFile);
+                        });
+                        return null;
+                    }));
+                }
+            }
+
+            for (ForkJoinTask<Void> walk : walks) {
+                try {
+                    walk.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sources of one sourceSet type, and where they are processed
+     */
+    public static class ProcessedSources {
+        private final FileCollection sourceDirs;
+        private final Provider<File> destinationDir;
+        private final Provider<Boolean> remove;
+
+        public ProcessedSources(FileCollection sourceDirs, Provider<File> destinationDir, Provider<Boolean> remove) {
+            this.sourceDirs = sourceDirs;
+            this.destinationDir = destinationDir;
+            this.remove = remove;
+        }
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.RELATIVE)
+        public FileCollection getSourceDirs() {
+            return sourceDirs;
+        }
+
+        @Optional
+        @OutputDirectory
+        public Provider<File> getDestinationDir() {
+            return destinationDir;
+        }
+
+        @Input
+        public Provider<Boolean> getRemove() {
+            return remove;
+        }
+    }
+}
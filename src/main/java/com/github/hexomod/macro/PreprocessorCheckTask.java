@@ -0,0 +1,98 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Check that in place sources are already processed, without writing anything.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorCheckTask extends AbstractPreprocessorTask {
+
+    public static final String TASK_ID = "macroPreprocessorCheck";
+
+    /**
+     * Directories processed in place
+     */
+    private final ConfigurableFileCollection sourceDirs;
+
+    /**
+     * Directory used to display relative paths
+     */
+    private final File baseDir;
+
+    @Inject
+    public PreprocessorCheckTask() {
+        this.sourceDirs = getProject().files();
+        this.baseDir = getProject().getProjectDir();
+    }
+
+    @Internal
+    public ConfigurableFileCollection getSourceDirs() {
+        return sourceDirs;
+    }
+
+    @TaskAction
+    public void check() throws IOException {
+        log("Checking files ...");
+
+        Collection<Path> unprocessedFiles = new ConcurrentLinkedQueue<>();
+        Preprocessor inPlacePreprocessor = createInPlacePreprocessor();
+        SourceTreeWalker walker = createWalker();
+
+        for (File sourceDirectory : sourceDirs.getFiles()) {
+            log("    Checking directory : " + sourceDirectory);
+            walker.walk(sourceDirectory.toPath(), directory -> inPlacePreprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+                if (!inPlacePreprocessor.isProcessed(sourceFile.toFile())) {
+                    log("    Not processed " + sourceFile.toString());
+                    unprocessedFiles.add(sourceFile);
+                }
+            });
+        }
+
+        // List all files that are not processed
+        if (!unprocessedFiles.isEmpty()) {
+            List<String> files = new ArrayList<>();
+            for (Path file : unprocessedFiles) {
+                files.add(baseDir.toPath().relativize(file).toString());
+            }
+            Collections.sort(files);
+            throw new GradleException(files.size() + " file(s) not processed in place:" + System.lineSeparator() + "  " + String.join(System.lineSeparator() + "  ", files));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.util.GUtil;
+
+import javax.inject.Inject;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Compile java sources processed in memory, with the javax.tools compiler.
+ * Processed sources are never written to disk. Classes are written to a directory of their own, added to the sourceSet output.
+ * Sources are processed without removing directives, so compiler messages have the line numbers of the sources.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+@CacheableTask
+public class PreprocessorCompileTask extends AbstractPreprocessorTask {
+
+    public static final String TASK_ID = "macroPreprocessorCompile";
+
+    public static String getTaskName(SourceSet sourceSet) {
+        return TASK_ID + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Java";
+    }
+
+    private final ConfigurableFileCollection sourceDirs;
+    private final ConfigurableFileCollection classpath;
+    private final ConfigurableFileCollection annotationProcessorPath;
+    private final ListProperty<String> compilerArgs;
+    private final Property<String> encoding;
+    private final DirectoryProperty destinationDir;
+    private final DirectoryProperty generatedSourcesDir;
+
+    @Inject
+    public PreprocessorCompileTask() {
+        this.sourceDirs = getProject().files();
+        this.classpath = getProject().files();
+        this.annotationProcessorPath = getProject().files();
+        this.compilerArgs = getProject().getObjects().listProperty(String.class);
+        this.encoding = getProject().getObjects().property(String.class);
+        this.destinationDir = getProject().getObjects().directoryProperty();
+        this.generatedSourcesDir = getProject().getObjects().directoryProperty();
+    }
+
+    @Internal
+    public ConfigurableFileCollection getSourceDirs() {
+        return sourceDirs;
+    }
+
+    @InputFiles
+    @SkipWhenEmpty
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public FileTree getSource() {
+        return sourceDirs.getAsFileTree();
+    }
+
+    @Classpath
+    public ConfigurableFileCollection getClasspath() {
+        return classpath;
+    }
+
+    @Classpath
+    public ConfigurableFileCollection getAnnotationProcessorPath() {
+        return annotationProcessorPath;
+    }
+
+    @Input
+    public ListProperty<String> getCompilerArgs() {
+        return compilerArgs;
+    }
+
+    // Encoding of the sources, the platform encoding when absent like for the compile task
+    @Optional
+    @Input
+    public Property<String> getEncoding() {
+        return encoding;
+    }
+
+    @OutputDirectory
+    public DirectoryProperty getDestinationDir() {
+        return destinationDir;
+    }
+
+    @Optional
+    @OutputDirectory
+    public DirectoryProperty getGeneratedSourcesDir() {
+        return generatedSourcesDir;
+    }
+
+    @TaskAction
+    public void compile() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new GradleException("No java compiler found, in memory compilation requires a JDK.");
+        }
+
+        // Process sources in memory, as the preprocessor task does on disk
+        log("Processing files ...");
+        Charset charset = encoding.isPresent() ? Charset.forName(encoding.get()) : Charset.defaultCharset();
+        Collection<JavaFileObject> sources = new ConcurrentLinkedQueue<>();
+        Preprocessor preprocessor = createPreprocessor(false);
+        SourceTreeWalker walker = createWalker();
+        for (File sourceDirectory : sourceDirs.getFiles()) {
+            log("    Processing directory : " + sourceDirectory);
+            walker.walk(sourceDirectory.toPath(), directory -> preprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+                File file = sourceFile.toFile();
+                if (!file.getName().endsWith(JavaFileObject.Kind.SOURCE.extension)) {
+                    return;
+                }
+                // A file level directive keeps the file as is, or drops it
+                Boolean active = preprocessor.isFileActive(file);
+                if (Boolean.FALSE.equals(active)) {
+                    return;
+                }
+                log("    Processing " + sourceFile.toString());
+                // The preprocessor works on UTF-8, other encodings are converted first
+                byte[] content = Files.readAllBytes(sourceFile);
+                byte[] processed = null;
+                if (active == null) {
+                    boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+                    processed = preprocessor.processContent(file, utf8 ? content : new String(content, charset).getBytes(StandardCharsets.UTF_8));
+                }
+                sources.add(new ProcessedSource(file, processed != null ? new String(processed, StandardCharsets.UTF_8) : new String(content, charset)));
+            });
+        }
+
+        // Classes of removed sources must not remain
+        File destination = destinationDir.get().getAsFile();
+        FileUtils.forceMkdir(destination);
+        FileUtils.cleanDirectory(destination);
+
+        log("Compiling " + sources.size() + " files ...");
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.getDefault(), charset)) {
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(destination));
+            fileManager.setLocation(StandardLocation.CLASS_PATH, classpath.getFiles());
+            fileManager.setLocation(StandardLocation.ANNOTATION_PROCESSOR_PATH, annotationProcessorPath.getFiles());
+            List<String> options = new ArrayList<>(compilerArgs.get());
+            if (generatedSourcesDir.isPresent()) {
+                options.add("-s");
+                options.add(generatedSourcesDir.get().getAsFile().getAbsolutePath());
+            }
+            boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    getLogger().error(diagnostic.toString());
+                } else {
+                    getLogger().warn(diagnostic.toString());
+                }
+            }
+            if (!success) {
+                throw new GradleException("Compilation failed; see the compiler error output for details.");
+            }
+        }
+    }
+
+
+    /**
+     * A processed source, named after its file so compiler messages point to it
+     */
+    private static class ProcessedSource extends SimpleJavaFileObject {
+        private final String content;
+
+        ProcessedSource(File file, String content) {
+            super(file.toURI(), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+}
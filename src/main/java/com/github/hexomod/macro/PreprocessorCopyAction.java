@@ -0,0 +1,157 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.gradle.api.Action;
+import org.gradle.api.file.FileCopyDetails;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskInputs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process files while they are copied by a copy or archive task,
+ * so processed bytes go straight to the destination without an intermediate tree.
+ * Settings are providers, resolved when the task runs.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorCopyAction implements Action<FileCopyDetails> {
+
+    private final Provider<Boolean> enabled;
+    private final Provider<Map<String, Object>> vars;
+    private final Provider<Boolean> remove;
+    private final Provider<List<File>> includeDirs;
+    private final Provider<Map<String, String>> tokens;
+    private final Provider<Set<String>> textExtensions;
+
+    // Created when the task runs, shared by all copied files
+    private transient Preprocessor preprocessor;
+    private transient Map<File, Boolean> directories;
+
+    public PreprocessorCopyAction(Provider<Boolean> enabled, Provider<Map<String, Object>> vars, Provider<Boolean> remove, Provider<List<File>> includeDirs, Provider<Map<String, String>> tokens, Provider<Set<String>> textExtensions) {
+        this.enabled = enabled;
+        this.vars = vars;
+        this.remove = remove;
+        this.includeDirs = includeDirs;
+        this.tokens = tokens;
+        this.textExtensions = textExtensions;
+    }
+
+    /**
+     * Declare the settings as inputs of the copy task, the same as the preprocessor tasks,
+     * so the task runs again when they change
+     *
+     * @param inputs the inputs of the copy task
+     */
+    public void declareInputs(TaskInputs inputs) {
+        inputs.property("macroPreprocessorEnabled", enabled);
+        inputs.property("macroPreprocessorVars", enabled.map(on -> on ? vars.get() : Collections.emptyMap()));
+        inputs.property("macroPreprocessorTokens", enabled.map(on -> on ? tokens.get() : Collections.emptyMap()));
+        inputs.property("macroPreprocessorTextExtensions", enabled.map(on -> on ? textExtensions.get() : Collections.emptySet()));
+        inputs.property("macroPreprocessorRemove", enabled.map(on -> on && remove.get()));
+        inputs.files((Callable<Object>) () -> enabled.get() ? includeDirs.get() : Collections.emptyList())
+                .withPropertyName("macroPreprocessorIncludeDirs")
+                .withPathSensitivity(PathSensitivity.RELATIVE);
+    }
+
+    @Override
+    public void execute(FileCopyDetails details) {
+        if (!enabled.get()) {
+            return;
+        }
+        try {
+            process(details);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void process(FileCopyDetails details) throws IOException {
+        Preprocessor preprocessor = getPreprocessor();
+        File file = details.getFile();
+        // A directory directive is never part of the output, nor files of inactive directories
+        if (file.getName().equals(Preprocessor.DIRECTORY_DIRECTIVE) || !isDirectoryActive(file, details.getRelativePath().getSegments().length - 1)) {
+            details.exclude();
+            return;
+        }
+        // A file level directive decide of the whole file
+        Boolean fileActive = preprocessor.isFileActive(file);
+        if (fileActive != null) {
+            if (!fileActive) {
+                details.exclude();
+            } else if (remove.get()) {
+                details.filter(Collections.singletonMap("skipFirstLine", true), PreprocessorFilterReader.class);
+            }
+            return;
+        }
+        // Only text files are filtered, files without keywords nor tokens are copied as is
+        Map<String, String> keywords = preprocessor.isTextFile(file.getName()) ? preprocessor.getKeywords(file) : null;
+        if (keywords != null || preprocessor.containsTokens(file)) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("preprocessor", preprocessor);
+            if (keywords != null) {
+                properties.put("keywords", keywords);
+            }
+            properties.put("file", file);
+            details.filter(properties, PreprocessorFilterReader.class);
+        }
+    }
+
+    private synchronized Preprocessor getPreprocessor() {
+        if (preprocessor == null) {
+            preprocessor = new Preprocessor(vars.get(), remove.get(), new ArrayList<>(includeDirs.get()), tokens.get());
+            preprocessor.setTextExtensions(textExtensions.get());
+            directories = new ConcurrentHashMap<>();
+        }
+        return preprocessor;
+    }
+
+    // Check the directories between the file and the root of the copied tree
+    private boolean isDirectoryActive(File file, int depth) throws IOException {
+        File directory = file.getParentFile();
+        for (int i = 0; i < depth && directory != null; i++) {
+            Boolean active = directories.get(directory);
+            if (active == null) {
+                active = preprocessor.isDirectoryActive(directory);
+                directories.put(directory, active);
+            }
+            if (!active) {
+                return false;
+            }
+            directory = directory.getParentFile();
+        }
+        return true;
+    }
+}
@@ -29,14 +29,23 @@ import com.github.hexomod.macro.extensions.SourceType;
 import groovy.lang.Closure;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.file.CopySpec;
 import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.SourceSet;
 import org.gradle.internal.Actions;
 import org.gradle.util.ConfigureUtil;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class PreprocessorExtension extends SourceType {
@@ -61,11 +70,36 @@ public class PreprocessorExtension extends SourceType {
      */
     private File processDir;
 
+    /**
+     * Directories where included files are searched
+     */
+    private final List<File> includeDirs;
+
+    /**
+     * Tokens replaced in active lines, while directives are evaluated
+     */
+    private final Map<String, String> tokens;
+
+    /**
+     * Extensions of the text files where tokens are replaced, besides java, gradle and yaml files
+     */
+    private final Set<String> textExtensions;
+
     /**
      * Enable logging to console while preprocessing files
      */
     private boolean verbose;
 
+    /**
+     * Remember files without directives in extended attributes, on Linux
+     */
+    private boolean xattrCache;
+
+    /**
+     * Process all sourceSets in a single task
+     */
+    private boolean aggregate;
+
     /**
      * java files configuration
      */
@@ -87,7 +121,12 @@ public class PreprocessorExtension extends SourceType {
         this.project = project;
         this.vars = new LinkedHashMap<>();
         this.processDir = new File(project.getBuildDir(), "preprocessor/macro");
+        this.includeDirs = new ArrayList<>();
+        this.tokens = new LinkedHashMap<>();
+        this.textExtensions = new LinkedHashSet<>(Preprocessor.TEXT_EXTENSIONS);
         this.verbose = false;
+        this.aggregate = false;
+        this.xattrCache = false;
         this.java = new Java();
         this.resources = new Resources();
     }
@@ -98,7 +137,25 @@ public class PreprocessorExtension extends SourceType {
     }
 
     public void setVars(Map<String, Object> vars) {
-        this.vars.putAll(vars);
+        vars.forEach((name, value) -> this.vars.put(name, lazy(value)));
+    }
+
+    // Providers and closures are computed when a directive first references them
+    private Object lazy(Object value) {
+        if (value instanceof Provider) {
+            Provider<?> provider = (Provider<?>) value;
+            return new LazyVar(this.vars, vars -> asValue(provider.getOrNull()));
+        } else if (value instanceof Closure) {
+            // A closure with a parameter receives the other variables
+            Closure<?> closure = (Closure<?>) value;
+            return new LazyVar(this.vars, vars -> asValue(closure.getMaximumNumberOfParameters() > 0 ? closure.call(vars) : closure.call()));
+        }
+        return value;
+    }
+
+    // Groovy strings are compared as strings
+    private static Object asValue(Object value) {
+        return value instanceof CharSequence ? value.toString() : value;
     }
 
 
@@ -120,6 +177,33 @@ public class PreprocessorExtension extends SourceType {
     }
 
 
+    public List<File> getIncludeDirs() {
+        return includeDirs;
+    }
+
+    public void includeDir(Object includeDir) {
+        this.includeDirs.add(this.project.file(includeDir));
+    }
+
+
+    public Map<String, String> getTokens() {
+        return tokens;
+    }
+
+    public void replace(Map<String, ?> tokens) {
+        tokens.forEach((token, value) -> this.tokens.put(token, String.valueOf(value)));
+    }
+
+
+    public Set<String> getTextExtensions() {
+        return textExtensions;
+    }
+
+    public void textExtension(String... extensions) {
+        this.textExtensions.addAll(Arrays.asList(extensions));
+    }
+
+
     public boolean getVerbose() {
         return verbose;
     }
@@ -129,6 +213,24 @@ public class PreprocessorExtension extends SourceType {
     }
 
 
+    public boolean getXattrCache() {
+        return xattrCache;
+    }
+
+    public void setXattrCache(boolean xattrCache) {
+        this.xattrCache = xattrCache;
+    }
+
+
+    public boolean getAggregate() {
+        return aggregate;
+    }
+
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+
     public Java getJava() {
         return java;
     }
@@ -155,6 +257,73 @@ public class PreprocessorExtension extends SourceType {
     }
 
 
+    // Lazy views of the settings, read once the build script has configured them
+
+    public Provider<Boolean> aggregated() {
+        return project.provider(this::getAggregate);
+    }
+
+    public Provider<Boolean> enabled(SourceType type) {
+        return project.provider(() -> getEnable() && type.getEnable());
+    }
+
+    public Provider<Boolean> inPlace(SourceType type) {
+        return project.provider(() -> getInPlace() || type.getInPlace());
+    }
+
+    public Provider<Boolean> removed(SourceType type) {
+        return project.provider(() -> getRemove() || type.getRemove());
+    }
+
+    public Provider<Boolean> streamed(Resources type) {
+        return project.provider(() -> getEnable() && type.getEnable() && type.getStreaming());
+    }
+
+    public Provider<Boolean> compiledInMemory(Java type) {
+        return project.provider(() -> getEnable() && type.getEnable() && type.getInMemory());
+    }
+
+    public Provider<Boolean> processed(SourceType type) {
+        return project.provider(() -> getEnable() && type.getEnable()
+                && !(type instanceof Resources && ((Resources) type).getStreaming())
+                && !(type instanceof Java && ((Java) type).getInMemory()));
+    }
+
+    public Provider<File> processDir(SourceSet sourceSet, String typeName) {
+        return project.provider(() -> new File(new File(getProcessDir(), sourceSet.getName()), typeName));
+    }
+
+    // The aggregate task has its own outputs, next to the process directory
+    public Provider<File> aggregateDir(SourceSet sourceSet, String typeName) {
+        return project.provider(() -> new File(new File(new File(getProcessDir().getPath() + "-aggregate"), sourceSet.getName()), typeName));
+    }
+
+    // Where the processed files used by the build are
+    public Provider<File> outputDir(SourceSet sourceSet, String typeName) {
+        return project.provider(() -> (getAggregate() ? aggregateDir(sourceSet, typeName) : processDir(sourceSet, typeName)).get());
+    }
+
+
+    /**
+     * Process the resources copied by a copy or archive task, like jar.
+     * The settings are inputs of the task, for a child spec they must be declared on its task.
+     *
+     * @param spec the copy spec
+     */
+    public void filter(CopySpec spec) {
+        PreprocessorCopyAction copyAction = new PreprocessorCopyAction(project.provider(() -> true)
+                , project.provider(this::getVars)
+                , removed(resources)
+                , project.provider(this::getIncludeDirs)
+                , project.provider(this::getTokens)
+                , project.provider(this::getTextExtensions));
+        spec.eachFile(copyAction);
+        if (spec instanceof Task) {
+            copyAction.declareInputs(((Task) spec).getInputs());
+        }
+    }
+
+
     // Print out a string if verbose is enabled
     public void log(String msg) {
         if (getVerbose()) {
@@ -0,0 +1,113 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * Filter processing a file while it is copied, see CopySpec.filter(Map, Class).
+ * Properties are set by Gradle after the filter is created, so the processing starts on the first read.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorFilterReader extends FilterReader {
+
+    private Preprocessor preprocessor;
+    private Map<String, String> keywords;
+    private File file;
+    private boolean skipFirstLine;
+
+    private Reader processed;
+
+    public PreprocessorFilterReader(Reader in) {
+        super(in);
+    }
+
+    public void setPreprocessor(Preprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    public void setKeywords(Map<String, String> keywords) {
+        this.keywords = keywords;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public void setSkipFirstLine(boolean skipFirstLine) {
+        this.skipFirstLine = skipFirstLine;
+    }
+
+    private Reader processed() throws IOException {
+        if (processed == null) {
+            BufferedReader lines = new BufferedReader(in);
+            // The file level directive is removed
+            if (skipFirstLine) {
+                lines.readLine();
+            }
+            processed = preprocessor != null ? preprocessor.process(lines, keywords, file) : lines;
+        }
+        return processed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return processed().read();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        return processed().read(cbuf, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return processed().skip(n);
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return processed().ready();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+}
@@ -23,66 +23,115 @@
  */
 package com.github.hexomod.macro;
 
-import org.gradle.api.DefaultTask;
-import org.gradle.api.Project;
-import org.gradle.api.file.SourceDirectorySet;
-import org.gradle.api.plugins.JavaPluginConvention;
-import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.LocalState;
+import org.gradle.api.tasks.OutputDirectories;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.util.GUtil;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Process the sources of one sourceSet and type in place.
+ * Sources are both inputs and outputs, so the task is up to date until a source changes.
+ * It is not cacheable: restoring outputs from the cache would rewrite source directories.
+ * When it runs, files still in the state recorded by the manifest of the last run are skipped without being read,
+ * and files are only written when their content changes.
+ */
 @SuppressWarnings({"WeakerAccess", "unused"})
-@CacheableTask
-public class PreprocessorInPlaceTask extends DefaultTask {
+public class PreprocessorInPlaceTask extends AbstractPreprocessorTask {
 
     public static final String TASK_ID = "macroPreprocessorInPlace";
+    public static final String TASK_RESOURCE_SUFFIX = "Resource";
+    public static final String TASK_JAVA_SUFFIX = "Java";
+
+    public static String getResourceTaskName(SourceSet sourceSet) {
+        return TASK_ID + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + TASK_RESOURCE_SUFFIX;
+    }
+
+    public static String getJavaTaskName(SourceSet sourceSet) {
+        return TASK_ID + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + TASK_JAVA_SUFFIX;
+    }
 
-    private final Project project;
-    private final PreprocessorExtension extension;
+    /**
+     * Directories processed in place
+     */
+    private final ConfigurableFileCollection sourceDirs;
+
+    /**
+     * State of the files processed by the last run
+     */
+    private final RegularFileProperty manifestFile;
 
     @Inject
     public PreprocessorInPlaceTask() {
-        this.project = getProject();
-        this.extension = project.getExtensions().findByType(PreprocessorExtension.class);
+        this.sourceDirs = getProject().files();
+        this.manifestFile = getProject().getObjects().fileProperty()
+                .convention(getProject().getLayout().getBuildDirectory().file("preprocessor/" + getName() + ".manifest"));
     }
 
-    @TaskAction
-    public void process() throws IOException {
-        extension.log("Processing files ...");
-        // Loop through all SourceSets
-        for (SourceSet sourceSet : project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets()) {
-            processSourceSet(sourceSet);
-        }
+    @InputFiles
+    @SkipWhenEmpty
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public FileTree getSource() {
+        return sourceDirs.getAsFileTree();
     }
 
-    private void processSourceSet(final SourceSet sourceSet) throws IOException {
-        extension.log("  Processing sourceSet : " + sourceSet.getName());
-
-        // Java files
-        if (extension.getInPlace() || extension.getResources().getInPlace()) {
-            processSourceDirectorySet(sourceSet.getJava());
-        }
+    @OutputDirectories
+    public ConfigurableFileCollection getSourceDirs() {
+        return sourceDirs;
+    }
 
-        // Resources files
-        if (extension.getInPlace() || extension.getResources().getInPlace()) {
-            processSourceDirectorySet(sourceSet.getResources());
-        }
+    @LocalState
+    public RegularFileProperty getManifestFile() {
+        return manifestFile;
     }
 
-    private void processSourceDirectorySet(final SourceDirectorySet sourceDirectorySet) throws IOException {
-        extension.log("    Processing directory : " + sourceDirectorySet.getName());
+    @TaskAction
+    public void process() throws IOException {
+        log("Processing files ...");
+
+        Preprocessor inPlacePreprocessor = createInPlacePreprocessor();
+        SourceTreeWalker walker = createWalker();
 
-        Preprocessor inPlacePreprocessor = new Preprocessor(extension.getVars(), false);
+        // The manifest of the last run is only used with the same settings
+        final File manifest = manifestFile.get().getAsFile();
+        final String fingerprint = PreprocessorManifest.fingerprint(getVars().get(), getIncludeDirs().getFiles());
+        final PreprocessorManifest previous = PreprocessorManifest.load(manifest, fingerprint);
+        final PreprocessorManifest current = new PreprocessorManifest(fingerprint);
+        final Collection<File> processedFiles = new ConcurrentLinkedQueue<>();
 
-        for (File sourceDirectory : sourceDirectorySet.getSrcDirs()) {
-            for (File sourceFile : project.fileTree(sourceDirectory)) {
-                extension.log("    Processing " + sourceFile.toString());
-                inPlacePreprocessor.process(sourceFile, sourceFile);
+        try (PreprocessorPipeline pipeline = createPipeline()) {
+            for (File sourceDirectory : sourceDirs.getFiles()) {
+                log("    Processing directory : " + sourceDirectory);
+                walker.walk(sourceDirectory.toPath(), directory -> inPlacePreprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+                    File file = sourceFile.toFile();
+                    if (current.keep(previous, file, attrs)) {
+                        return;
+                    }
+                    log("    Processing " + sourceFile.toString());
+                    pipeline.submit(inPlacePreprocessor, file, file);
+                    processedFiles.add(file);
+                });
             }
         }
+
+        // Record the files as they are now
+        for (File file : processedFiles) {
+            current.record(file, inPlacePreprocessor.getIncluded(file));
+        }
+        current.save(manifest);
+        log("    " + processedFiles.size() + " files processed, " + (current.size() - processedFiles.size()) + " unchanged");
     }
 }
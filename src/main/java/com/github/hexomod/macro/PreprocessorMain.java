@@ -0,0 +1,202 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line entry point to preprocess source trees outside of Gradle.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorMain {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar MacroPreprocessor-cli.jar [options] <source dir>...",
+            "Options:",
+            "  --output <dir>     directory where files are processed",
+            "  --in-place         process files in place",
+            "  --vars <file>      properties file holding the variables",
+            "  -D<name>=<value>   define a variable",
+            "  --include <dir>    directory where included files are searched",
+            "  --remove           remove directives and disabled lines",
+            "  --watch            keep running and process changed files",
+            "  --xattr-cache      remember files without directives in extended attributes (Linux)",
+            "  --verbose          log each processed file");
+
+    private final List<File> sourceDirs = new ArrayList<>();
+    private final Map<String, Object> vars = new LinkedHashMap<>();
+    private final List<File> includeDirs = new ArrayList<>();
+    private File outputDir;
+    private boolean inPlace;
+    private boolean remove;
+    private boolean watch;
+    private boolean verbose;
+    private boolean xattrCache;
+
+    private final AtomicInteger fileCount = new AtomicInteger();
+    private final AtomicLong byteCount = new AtomicLong();
+
+
+    public static void main(String[] args) {
+        try {
+            System.exit(new PreprocessorMain().run(args));
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    int run(String[] args) throws IOException, InterruptedException {
+        // Parse command line
+        try {
+            parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        // Process all trees
+        long start = System.nanoTime();
+        for (File sourceDir : sourceDirs) {
+            processSourceDirectory(sourceDir);
+        }
+        long duration = (System.nanoTime() - start) / 1000000;
+        System.out.println("Processed " + fileCount.get() + " files (" + byteCount.get() + " bytes) in " + duration + " ms");
+
+        // Keep processing changed files
+        if (watch) {
+            try (PreprocessorWatcher watcher = new PreprocessorWatcher(this::log)) {
+                for (File sourceDir : sourceDirs) {
+                    watcher.watch(sourceDir, new Preprocessor(vars, remove, includeDirs), inPlace ? null : outputDir);
+                }
+                for (File includeDir : includeDirs) {
+                    watcher.watchIncludes(includeDir);
+                }
+                System.out.println("Watching source directories, press Ctrl+C to stop.");
+                watcher.run();
+            }
+        }
+        return 0;
+    }
+
+    void parseArguments(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--output")) {
+                outputDir = new File(nextArgument(args, ++i, arg));
+            } else if (arg.equals("--vars")) {
+                loadVars(new File(nextArgument(args, ++i, arg)));
+            } else if (arg.equals("--include")) {
+                includeDirs.add(new File(nextArgument(args, ++i, arg)));
+            } else if (arg.startsWith("-D") && arg.contains("=")) {
+                putVar(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.equals("--in-place")) {
+                inPlace = true;
+            } else if (arg.equals("--remove")) {
+                remove = true;
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--xattr-cache")) {
+                xattrCache = true;
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else {
+                sourceDirs.add(new File(arg));
+            }
+        }
+        if (sourceDirs.isEmpty()) {
+            throw new IllegalArgumentException("No source directory");
+        }
+        if (inPlace == (outputDir != null)) {
+            throw new IllegalArgumentException("Either --output or --in-place is required");
+        }
+        if (inPlace && remove) {
+            throw new IllegalArgumentException("--remove can not be used in place");
+        }
+    }
+
+    private String nextArgument(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private void loadVars(File varsFile) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(varsFile.toPath())) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            putVar(name, properties.getProperty(name));
+        }
+    }
+
+    private void putVar(String name, String value) {
+        vars.put(name.trim(), parseVar(value.trim()));
+    }
+
+    static Object parseVar(String value) {
+        // Versions are kept as strings, so 1.16 is not the number 1.16 and is compared like in Gradle
+        if (Version.isVersion(value)) {
+            return value;
+        }
+        // Numbers and booleans are typed the same way as in expressions
+        return new Preprocessor(Collections.emptyMap()).evaluateVariable(value);
+    }
+
+    private void processSourceDirectory(File sourceDir) throws IOException {
+        log("Processing directory : " + sourceDir);
+
+        Preprocessor preprocessor = new Preprocessor(vars, remove, includeDirs);
+        if (xattrCache) {
+            preprocessor.setPassThroughCache(new PassThroughCache());
+        }
+        Path sourcePath = sourceDir.toPath();
+
+        new SourceTreeWalker().walk(sourcePath, directory -> preprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+            log("  Processing " + sourceFile);
+            File processFile = inPlace ? sourceFile.toFile() : outputDir.toPath().resolve(sourcePath.relativize(sourceFile)).toFile();
+            preprocessor.process(sourceFile.toFile(), processFile);
+            fileCount.incrementAndGet();
+            byteCount.addAndGet(attrs.size());
+        });
+    }
+
+    private void log(String msg) {
+        if (verbose) {
+            System.out.println(msg);
+        }
+    }
+}
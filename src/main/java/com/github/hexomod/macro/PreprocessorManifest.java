@@ -0,0 +1,263 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of the files after they were processed in place: size, modification time and hash,
+ * and the same for the fragments they include.
+ * A file still in this state is already processed and does not need to be read again.
+ * The manifest is only valid for the settings it was made with, see the fingerprint.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorManifest {
+
+    // Changed when the format or the processing changes, to discard older manifests
+    private static final String VERSION = "macro-manifest-1";
+
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public PreprocessorManifest(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Load a manifest
+     *
+     * @param file        the manifest file
+     * @param fingerprint the fingerprint of the current settings
+     * @return the manifest, empty if it does not exist or was made with other settings
+     */
+    public static PreprocessorManifest load(File file, String fingerprint) {
+        PreprocessorManifest manifest = new PreprocessorManifest(fingerprint);
+        if (!file.isFile()) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!(VERSION + "\t" + fingerprint).equals(reader.readLine())) {
+                return manifest;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                List<Stamp> fragments = new ArrayList<>();
+                for (int i = 4; i + 2 < fields.length; i += 3) {
+                    fragments.add(new Stamp(fields[i], Long.parseLong(fields[i + 1]), Long.parseLong(fields[i + 2])));
+                }
+                manifest.entries.put(fields[0], new Entry(new Stamp(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])), fields[3], fragments));
+            }
+        } catch (IOException | RuntimeException e) {
+            // A broken manifest only means that every file is processed again
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    public void save(File file) throws IOException {
+        FileUtils.forceMkdirParent(file);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(VERSION + "\t" + fingerprint);
+            writer.newLine();
+            for (Entry entry : new TreeMap<>(entries).values()) {
+                StringBuilder line = new StringBuilder();
+                line.append(entry.stamp.path).append('\t').append(entry.stamp.size).append('\t').append(entry.stamp.lastModified).append('\t').append(entry.hash);
+                for (Stamp fragment : entry.fragments) {
+                    line.append('\t').append(fragment.path).append('\t').append(fragment.size).append('\t').append(fragment.lastModified);
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Check if a file is still in the state recorded by a manifest, and keep it in this manifest if it is.
+     * Files with the same size and modification time are not read, others are compared by hash.
+     *
+     * @param previous the manifest of the previous run
+     * @param file     the file
+     * @param attrs    the attributes of the file
+     * @return true if the file is already processed
+     */
+    public boolean keep(PreprocessorManifest previous, File file, BasicFileAttributes attrs) throws IOException {
+        Entry entry = previous.entries.get(file.getPath());
+        if (entry == null || entry.stamp.size != attrs.size() || !entry.fragmentsUnchanged()) {
+            return false;
+        }
+        if (entry.stamp.lastModified != attrs.lastModifiedTime().toMillis()) {
+            // Only touched, like by a checkout restoring the same content
+            if (!entry.hash.equals(hash(file))) {
+                return false;
+            }
+            entry = new Entry(new Stamp(file.getPath(), attrs.size(), attrs.lastModifiedTime().toMillis()), entry.hash, entry.fragments);
+        }
+        entries.put(file.getPath(), entry);
+        return true;
+    }
+
+    /**
+     * Record the state of a processed file
+     *
+     * @param file      the processed file
+     * @param fragments the fragments included by the file
+     */
+    public void record(File file, Collection<File> fragments) throws IOException {
+        List<Stamp> fragmentStamps = new ArrayList<>();
+        for (File fragment : fragments) {
+            fragmentStamps.add(Stamp.of(fragment));
+        }
+        entries.put(file.getPath(), new Entry(Stamp.of(file), hash(file), fragmentStamps));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Fingerprint of the settings changing the processed files
+     *
+     * @param vars        the variables
+     * @param includeDirs the directories of the included files
+     * @return the fingerprint
+     */
+    public static String fingerprint(Map<String, Object> vars, Collection<File> includeDirs) {
+        MessageDigest digest = newDigest();
+        update(digest, new TreeMap<>(LazyVar.resolving(vars)).toString());
+        for (File includeDir : includeDirs) {
+            update(digest, includeDir.getAbsolutePath());
+        }
+        return toHex(digest.digest());
+    }
+
+    static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // Digest while reading
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+     * Size and modification time of a file
+     */
+    private static class Stamp {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        Stamp(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static Stamp of(File file) {
+            return new Stamp(file.getPath(), file.length(), file.lastModified());
+        }
+
+        boolean isUnchanged() {
+            File file = new File(path);
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * State of a processed file
+     */
+    private static class Entry {
+        private final Stamp stamp;
+        private final String hash;
+        private final List<Stamp> fragments;
+
+        Entry(Stamp stamp, String hash, List<Stamp> fragments) {
+            this.stamp = stamp;
+            this.hash = hash;
+            this.fragments = Collections.unmodifiableList(fragments);
+        }
+
+        boolean fragmentsUnchanged() {
+            for (Stamp fragment : fragments) {
+                if (!fragment.isUnchanged()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
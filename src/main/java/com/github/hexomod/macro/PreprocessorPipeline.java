@@ -0,0 +1,385 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process files in three stages joined by queues:
+ * reader threads load files, tasks of the shared pool process their content and writer threads save it.
+ * Reading and writing overlap with evaluation, which helps on high latency file systems.
+ * The bytes of the files in flight are bounded, submitting blocks until enough are written.
+ * Small files can be submitted as a batch, processed at once by an evaluator.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorPipeline implements Closeable {
+
+    public static final int DEFAULT_IO_THREADS = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64 * 1024 * 1024;
+
+    // Queues never block, the files in flight are bounded by their bytes
+    private final BlockingQueue<Job> readQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Job> writeQueue = new LinkedBlockingQueue<>();
+    private final List<Thread> readers = new ArrayList<>();
+    private final List<Thread> writers = new ArrayList<>();
+
+    // Evaluations run on the pool shared with the other tasks
+    private final ForkJoinPool pool;
+    private final Object idle = new Object();
+    private int evaluating;
+
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // Nanoseconds spent processing each file
+    private final Map<File, Long> timings = new ConcurrentHashMap<>();
+
+    public PreprocessorPipeline() {
+        this(ForkJoinPool.commonPool(), DEFAULT_IO_THREADS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public PreprocessorPipeline(ForkJoinPool pool, int ioThreads, int maxInFlight) {
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        start(readers, ioThreads, "reader", readQueue, this::read);
+        start(writers, ioThreads, "writer", writeQueue, this::write);
+    }
+
+    /**
+     * Queue a file, blocking while too many bytes are in flight
+     *
+     * @param preprocessor the preprocessor to use
+     * @param inFile       the file to process
+     * @param outFile      the processed file, same as inFile in place
+     */
+    public void submit(Preprocessor preprocessor, File inFile, File outFile) throws IOException {
+        throwFailure();
+        Job job = new Job(preprocessor, inFile, outFile, (int) Math.min(inFile.length(), maxInFlight));
+        try {
+            acquire(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + inFile, e);
+        }
+    }
+
+    /**
+     * Queue small files processed together, blocking while too many bytes are in flight
+     *
+     * @param preprocessor the preprocessor to use
+     * @param inFiles      the files to process
+     * @param outFiles     the processed files
+     */
+    public void submit(Preprocessor preprocessor, List<File> inFiles, List<File> outFiles) throws IOException {
+        throwFailure();
+        long size = 0;
+        for (File inFile : inFiles) {
+            size += inFile.length();
+        }
+        Job job = new Job(preprocessor, inFiles, outFiles, (int) Math.min(size, maxInFlight));
+        try {
+            acquire(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + inFiles, e);
+        }
+    }
+
+    /**
+     * @return the nanoseconds spent processing each file so far
+     */
+    public Map<File, Long> getTimings() {
+        return timings;
+    }
+
+    /**
+     * Wait for all queued files, and stop the stages
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // Each stage is drained before the next one is stopped
+            stop(readers, readQueue);
+            synchronized (idle) {
+                while (evaluating > 0) {
+                    idle.wait();
+                }
+            }
+            stop(writers, writeQueue);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing files", e);
+        }
+        throwFailure();
+    }
+
+
+    // Blocking a worker of the shared pool lets it start another one meanwhile
+    private void acquire(Job job) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean acquired;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                if (!acquired) {
+                    inFlight.acquire(job.permits);
+                    acquired = true;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return acquired || (acquired = inFlight.tryAcquire(job.permits));
+            }
+        });
+        readQueue.put(job);
+    }
+
+    private void read(Job job) throws IOException {
+        // Batches are read by the evaluator, one file at a time
+        if (job.batchIn != null) {
+            evaluateLater(job);
+        }
+        // Files decided by a directive are already done
+        else if (job.preprocessor.processDirectives(job.inFile, job.outFile)) {
+            release(job);
+        }
+        // Files known to have no directives are copied as is, without being decoded
+        else if (job.preprocessor.isPassThrough(job.inFile)) {
+            if (!job.inFile.equals(job.outFile)) {
+                FileUtils.copyFile(job.inFile, job.outFile);
+            }
+            release(job);
+        }
+        // Large files are streamed by the evaluator
+        else if (job.inFile.length() > Preprocessor.PARALLEL_THRESHOLD) {
+            evaluateLater(job);
+        } else {
+            job.content = Files.readAllBytes(job.inFile.toPath());
+            evaluateLater(job);
+        }
+    }
+
+    private void evaluateLater(Job job) {
+        synchronized (idle) {
+            evaluating++;
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    run(this::evaluate, job);
+                } finally {
+                    evaluated();
+                }
+            });
+        } catch (RuntimeException e) {
+            evaluated();
+            throw e;
+        }
+    }
+
+    private void evaluated() {
+        synchronized (idle) {
+            if (--evaluating == 0) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void evaluate(Job job) throws IOException {
+        if (job.batchIn != null) {
+            for (int i = 0; i < job.batchIn.size(); i++) {
+                long start = System.nanoTime();
+                job.preprocessor.process(job.batchIn.get(i), job.batchOut.get(i));
+                timings.put(job.batchIn.get(i), System.nanoTime() - start);
+            }
+            release(job);
+            return;
+        }
+        long start = System.nanoTime();
+        if (job.content == null) {
+            job.preprocessor.process(job.inFile, job.outFile);
+            timings.put(job.inFile, System.nanoTime() - start);
+            release(job);
+            return;
+        }
+        job.processed = job.preprocessor.processContent(job.inFile, job.content);
+        timings.put(job.inFile, System.nanoTime() - start);
+        // Files without keywords or already processed are left untouched in place
+        if (job.inFile.equals(job.outFile) && (job.processed == null || Arrays.equals(job.processed, job.content))) {
+            release(job);
+        } else {
+            forward(writeQueue, job);
+        }
+    }
+
+    private void write(Job job) throws IOException {
+        byte[] bytes = job.processed != null ? job.processed : job.content;
+        FileUtils.forceMkdirParent(job.outFile);
+        if (job.inFile.equals(job.outFile)) {
+            // Replace the file at once
+            File processFile = Preprocessor.createTempFile(job.outFile);
+            try {
+                Files.write(processFile.toPath(), bytes);
+                Preprocessor.replaceFile(processFile, job.outFile);
+            } finally {
+                FileUtils.deleteQuietly(processFile);
+            }
+        } else {
+            Files.write(job.outFile.toPath(), bytes);
+        }
+        release(job);
+    }
+
+
+    private void forward(BlockingQueue<Job> queue, Job job) throws IOException {
+        try {
+            queue.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + (job.inFile != null ? job.inFile : job.batchIn), e);
+        }
+    }
+
+    private void release(Job job) {
+        job.content = null;
+        job.processed = null;
+        inFlight.release(job.permits);
+    }
+
+    private void throwFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+
+    @FunctionalInterface
+    private interface Stage {
+        void run(Job job) throws IOException;
+    }
+
+    private void start(List<Thread> threads, int count, String name, BlockingQueue<Job> queue, Stage stage) {
+        for (int i = 0; i < Math.max(1, count); i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    Job job;
+                    while ((job = queue.take()) != Job.END) {
+                        run(stage, job);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "macro-preprocessor-" + name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    private void run(Stage stage, Job job) {
+        // After a failure, remaining files are only released
+        if (failure.get() != null) {
+            release(job);
+            return;
+        }
+        try {
+            stage.run(job);
+        } catch (Throwable e) {
+            // Errors too, so no stage waits forever for a file that will never come
+            failure.compareAndSet(null, e instanceof UncheckedIOException ? e.getCause() : e);
+            release(job);
+        }
+    }
+
+    private void stop(List<Thread> threads, BlockingQueue<Job> queue) throws InterruptedException {
+        for (int i = 0; i < threads.size(); i++) {
+            queue.put(Job.END);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+
+    /**
+     * A file going through the stages
+     */
+    private static class Job {
+        private static final Job END = new Job(null, (File) null, null, 0);
+
+        private final Preprocessor preprocessor;
+        private final File inFile;
+        private final File outFile;
+        private final List<File> batchIn;
+        private final List<File> batchOut;
+        private final int permits;
+        private byte[] content;
+        private byte[] processed;
+
+        Job(Preprocessor preprocessor, File inFile, File outFile, int permits) {
+            this.preprocessor = preprocessor;
+            this.inFile = inFile;
+            this.outFile = outFile;
+            this.batchIn = null;
+            this.batchOut = null;
+            this.permits = permits;
+        }
+
+        Job(Preprocessor preprocessor, List<File> batchIn, List<File> batchOut, int permits) {
+            this.preprocessor = preprocessor;
+            this.inFile = null;
+            this.outFile = null;
+            this.batchIn = batchIn;
+            this.batchOut = batchOut;
+            this.permits = permits;
+        }
+    }
+}
@@ -25,18 +25,31 @@
 package com.github.hexomod.macro;
 
 import org.gradle.api.*;
+import org.gradle.api.artifacts.dsl.DependencyHandler;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.SourceDirectorySet;
+import org.gradle.api.file.FileTreeElement;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginConvention;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.SourceSetContainer;
 import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.compile.CompileOptions;
 import org.gradle.api.tasks.compile.JavaCompile;
 import org.gradle.language.jvm.tasks.ProcessResources;
 import org.gradle.util.GUtil;
 
 import java.io.File;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 
 @SuppressWarnings({"unused"})
@@ -57,13 +70,39 @@ public class PreprocessorPlugin implements Plugin<Project> {
         // Configure extension
         PreprocessorExtension extension = configureExtension(project);
 
+        // Share worker threads between tasks and projects
+        configurePoolService(project);
+
+        // Process jar and zip dependencies requesting it
+        RegisterTransform(project, extension);
+
+        //
+        RegisterInPlaceTask(project);
+
         //
-        PreprocessorInPlaceTask inPlaceTask = RegisterInPlaceTask(project, extension);
+        RegisterWatchTask(project, extension);
+        RegisterCheckTask(project, extension);
+        RegisterAggregateTask(project, extension);
 
-        // Register and configure preprocessors task
-        project.afterEvaluate(root -> {
-            configureInPlacePreprocessor(project, extension, inPlaceTask);
-            RegisterPreprocessors(project, extension, inPlaceTask);
+        // Register preprocessors of each sourceSet, tasks are only created when needed
+        final SourceSetContainer sourceSets = project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets();
+        sourceSets.all(sourceSet -> {
+            // One in place task per sourceSet and type, so unrelated sourceSets do not wait for each other
+            final TaskProvider<PreprocessorInPlaceTask> javaInPlaceTask = RegisterInPlacePreprocessor(project, extension
+                    , PreprocessorInPlaceTask.getJavaTaskName(sourceSet)
+                    , sourceSet.getJava()
+                    , extension.inPlace(extension.getJava())
+                    , "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Java");
+            final TaskProvider<PreprocessorInPlaceTask> resourcesInPlaceTask = RegisterInPlacePreprocessor(project, extension
+                    , PreprocessorInPlaceTask.getResourceTaskName(sourceSet)
+                    , sourceSet.getResources()
+                    , extension.inPlace(extension.getResources())
+                    , "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Resource");
+            // Sources are processed in place before being compiled
+            project.getTasks().named(sourceSet.getCompileJavaTaskName(), compileTask -> compileTask.dependsOn(javaInPlaceTask));
+            project.getTasks().named(sourceSet.getProcessResourcesTaskName(), resourceTask -> resourceTask.dependsOn(resourcesInPlaceTask));
+
+            RegisterPreprocessors(project, extension, sourceSet, javaInPlaceTask, resourcesInPlaceTask);
         });
     }
 
@@ -76,100 +115,294 @@ public class PreprocessorPlugin implements Plugin<Project> {
     }
 
 
-    private PreprocessorInPlaceTask RegisterInPlaceTask(final Project project, final PreprocessorExtension extension) {
-        PreprocessorInPlaceTask inPlaceTask = project.getTasks().register(PreprocessorInPlaceTask.TASK_ID, PreprocessorInPlaceTask.class, preprocessor -> {
-            preprocessor.setDescription("Apply macro to source code.");
-            preprocessor.setGroup("preprocessor");
-        }).get();
-
-        try {
-            // Make macroPreprocessor task depends on replacePreprocessor (if exist)
-            Task replacePreprocessor = project.getTasks().getByName("replacePreprocessor");
-            makeDependsOn(inPlaceTask, replacePreprocessor);
-        } catch (UnknownTaskException ignored) {
-        }
-
-        return inPlaceTask;
+    private void configurePoolService(final Project project) {
+        final Provider<PreprocessorPoolService> poolService = project.getGradle().getSharedServices().registerIfAbsent(
+                PreprocessorPoolService.NAME
+                , PreprocessorPoolService.class
+                , spec -> spec.getParameters().getMaxWorkers().set(project.getGradle().getStartParameter().getMaxWorkerCount()));
+        project.getTasks().withType(AbstractPreprocessorTask.class).configureEach(task -> {
+            task.getPoolService().set(poolService);
+            task.usesService(poolService);
+        });
     }
 
-    private void configureInPlacePreprocessor(final Project project, final PreprocessorExtension extension, final PreprocessorInPlaceTask inPlaceTask) {
-        // Get all sourceSet to create one preprocessor per sourceSet
-        final SourceSetContainer sourceSets = project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets();
 
-        // Get compile task from SourceSet
-        for (SourceSet sourceSet : sourceSets) {
-            final JavaCompile compileTask = (JavaCompile) project.getTasks().findByName(sourceSet.getCompileJavaTaskName());
-            makeDependsOn(compileTask, inPlaceTask);
-            final ProcessResources resourceTask = (ProcessResources) project.getTasks().findByName(sourceSet.getProcessResourcesTaskName());
-            makeDependsOn(resourceTask, inPlaceTask);
+    private void RegisterTransform(final Project project, final PreprocessorExtension extension) {
+        final DependencyHandler dependencies = project.getDependencies();
+        dependencies.getAttributesSchema().attribute(PreprocessorTransform.PROCESSED_ATTRIBUTE);
+        for (String artifactType : new String[]{"jar", "zip"}) {
+            dependencies.getArtifactTypes().maybeCreate(artifactType).getAttributes().attribute(PreprocessorTransform.PROCESSED_ATTRIBUTE, false);
+            dependencies.registerTransform(PreprocessorTransform.class, spec -> {
+                spec.getFrom().attribute(PreprocessorTransform.ARTIFACT_TYPE_ATTRIBUTE, artifactType).attribute(PreprocessorTransform.PROCESSED_ATTRIBUTE, false);
+                spec.getTo().attribute(PreprocessorTransform.ARTIFACT_TYPE_ATTRIBUTE, artifactType).attribute(PreprocessorTransform.PROCESSED_ATTRIBUTE, true);
+                spec.parameters(parameters -> {
+                    parameters.getVars().set(project.provider(extension::getVars));
+                    parameters.getTokens().set(project.provider(extension::getTokens));
+                    parameters.getTextExtensions().set(project.provider(extension::getTextExtensions));
+                    parameters.getRemoveJava().set(extension.removed(extension.getJava()));
+                    parameters.getRemoveResources().set(extension.removed(extension.getResources()));
+                    parameters.getIncludeDirs().from((Callable<List<File>>) extension::getIncludeDirs);
+                });
+            });
         }
     }
 
 
-    private void RegisterPreprocessors(final Project project, final PreprocessorExtension extension, final PreprocessorInPlaceTask inPlaceTask) {
-        // Get all sourceSet to create one preprocessor per sourceSet
-        final SourceSetContainer sourceSets = project.getConvention().getPlugin(JavaPluginConvention.class).getSourceSets();
+    private void RegisterInPlaceTask(final Project project) {
+        // Runs the in place preprocessors of all sourceSets
+        project.getTasks().register(PreprocessorInPlaceTask.TASK_ID, task -> {
+            task.setDescription("Apply macro to source code.");
+            task.setGroup("preprocessor");
+            task.dependsOn(project.getTasks().withType(PreprocessorInPlaceTask.class));
+        });
+    }
 
-        // Register each preprocessor
-        for (SourceSet sourceSet : sourceSets) {
-            // Java files
-            if (extension.getEnable() && extension.getJava().getEnable()) {
-                final JavaCompile compileTask = (JavaCompile) project.getTasks().findByName(sourceSet.getCompileJavaTaskName());
-                PreprocessorTask preprocessor = RegisterJavaPreprocessor(project, extension, sourceSet, compileTask).get();
-                makeDependsOn(preprocessor, inPlaceTask);
-                makeDependsOn(project, preprocessor, "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Java");
-                makeDependsOn(compileTask, preprocessor);
-            }
-            // Resources files
-            if (extension.getEnable() && extension.getResources().getEnable()) {
-                final ProcessResources resourceTask = (ProcessResources) project.getTasks().findByName(sourceSet.getProcessResourcesTaskName());
-                PreprocessorTask preprocessor = RegisterResourcesPreprocessor(project, extension, sourceSet, resourceTask).get();
-                makeDependsOn(preprocessor, inPlaceTask);
-                makeDependsOn(project, preprocessor, "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Resource");
-                makeDependsOn(resourceTask, preprocessor);
-            }
-        }
+    private void RegisterWatchTask(final Project project, final PreprocessorExtension extension) {
+        project.getTasks().register(PreprocessorWatchTask.TASK_ID, PreprocessorWatchTask.class, watcher -> {
+            watcher.setDescription("Watch source code and apply macro to changed files.");
+            watcher.setGroup("preprocessor");
+            watcher.configure(extension);
+        });
     }
 
-    private TaskProvider<PreprocessorTask> RegisterJavaPreprocessor(final Project project, final PreprocessorExtension extension, SourceSet sourceSet, JavaCompile compileTask) {
-        return project.getTasks().register(PreprocessorTask.getJavaTaskName(sourceSet), PreprocessorTask.class, preprocessor -> {
-            preprocessor.setDescription("Apply macro to source code.");
+    private void RegisterAggregateTask(final Project project, final PreprocessorExtension extension) {
+        project.getTasks().register(PreprocessorAggregateTask.TASK_ID, PreprocessorAggregateTask.class, preprocessor -> {
+            preprocessor.setDescription("Apply macro to the source code of all sourceSets.");
             preprocessor.setGroup("preprocessor");
-            preprocessor.setSourceSet(sourceSet);
-            preprocessor.from(sourceSet.getJava().getSrcDirs());
-            preprocessor.exclude(sourceSet.getResources().getSrcDirs().stream().map(File::getPath).collect(Collectors.toList()));
-            preprocessor.setDestinationDir(new File(new File(extension.getProcessDir(), sourceSet.getName()), "java"));
+            preprocessor.configure(extension);
         });
     }
 
-    private TaskProvider<PreprocessorTask> RegisterResourcesPreprocessor(final Project project, final PreprocessorExtension extension, SourceSet sourceSet, ProcessResources resourcesTask) {
-        return project.getTasks().register(PreprocessorTask.getResourceTaskName(sourceSet), PreprocessorTask.class, preprocessor -> {
-            preprocessor.setDescription("Apply macro to source code.");
+    private void RegisterCheckTask(final Project project, final PreprocessorExtension extension) {
+        project.getTasks().register(PreprocessorCheckTask.TASK_ID, PreprocessorCheckTask.class, checker -> {
+            checker.setDescription("Check that source code is already processed in place.");
+            checker.setGroup("preprocessor");
+            checker.configure(extension);
+        });
+    }
+
+    private TaskProvider<PreprocessorInPlaceTask> RegisterInPlacePreprocessor(final Project project, final PreprocessorExtension extension, String taskName, final SourceDirectorySet sourceDirectorySet, final Provider<Boolean> inPlace, String replaceTaskName) {
+        // Directories processed in place, resolved once the build script is evaluated
+        final Callable<Object> inPlaceDirs = () -> inPlace.get() ? sourceDirectorySet.getSrcDirs() : Collections.emptyList();
+        project.getTasks().named(PreprocessorCheckTask.TASK_ID, PreprocessorCheckTask.class, checker -> checker.getSourceDirs().from(inPlaceDirs));
+        project.getTasks().named(PreprocessorWatchTask.TASK_ID, PreprocessorWatchTask.class, watcher -> watcher.getInPlaceDirs().from(inPlaceDirs));
+
+        return project.getTasks().register(taskName, PreprocessorInPlaceTask.class, preprocessor -> {
+            preprocessor.setDescription("Apply macro to source code in place.");
             preprocessor.setGroup("preprocessor");
-            preprocessor.setSourceSet(sourceSet);
-            preprocessor.from(sourceSet.getResources().getSrcDirs());
-            preprocessor.setDestinationDir(new File(new File(extension.getProcessDir(), sourceSet.getName()), "resources"));
+            preprocessor.configure(extension);
+            preprocessor.getSourceDirs().from(inPlaceDirs);
+            // Make in place task depends on replacePreprocessor (if exist)
+            preprocessor.dependsOn(optionalTask(project, "replacePreprocessor"));
+            preprocessor.dependsOn(optionalTask(project, replaceTaskName));
+        });
+    }
+
+
+    private void RegisterPreprocessors(final Project project, final PreprocessorExtension extension, final SourceSet sourceSet, final TaskProvider<PreprocessorInPlaceTask> javaInPlaceTask, final TaskProvider<PreprocessorInPlaceTask> resourcesInPlaceTask) {
+        // Java files
+        final Provider<Boolean> javaEnabled = extension.processed(extension.getJava());
+        final FileCollection javaProcessed = RegisterJavaPreprocessor(project, extension, sourceSet, javaInPlaceTask);
+        final Provider<Boolean> javaInMemory = extension.compiledInMemory(extension.getJava());
+        final TaskProvider<PreprocessorCompileTask> javaCompileTask = RegisterCompilePreprocessor(project, extension, sourceSet, javaInMemory, javaInPlaceTask);
+        project.getTasks().named(sourceSet.getCompileJavaTaskName(), JavaCompile.class, compileTask -> {
+            // Compile the processed files, the sourceSet itself is left untouched
+            // Or let the in memory compiler replace it, without sources the classes of the compile task are removed
+            compileTask.setSource(project.files((Callable<Object>) () -> javaInMemory.get()
+                    ? Collections.emptyList()
+                    : javaEnabled.get()
+                    ? javaProcessed.getAsFileTree().matching(sourceSet.getJava().getFilter())
+                    : sourceSet.getJava()));
+            compileTask.dependsOn((Callable<Object>) () -> javaInMemory.get() ? javaCompileTask : Collections.emptyList());
+        });
+
+        // Resources files
+        final Provider<Boolean> resourcesEnabled = extension.processed(extension.getResources());
+        final FileCollection resourcesProcessed = RegisterResourcesPreprocessor(project, extension, sourceSet, resourcesInPlaceTask);
+        project.getTasks().named(sourceSet.getProcessResourcesTaskName(), ProcessResources.class, resourceTask -> {
+            // Copy the processed files instead of the original ones
+            resourceTask.from((Callable<Object>) () -> resourcesEnabled.get() ? resourcesProcessed : Collections.emptyList());
+            resourceTask.exclude(new ProcessedFilesOnly(resourcesEnabled, extension.outputDir(sourceSet, "resources")));
+            // Or process them while they are copied, filtered files are read as UTF-8 like processed ones
+            final Provider<Boolean> resourcesStreamed = extension.streamed(extension.getResources());
+            if (resourcesStreamed.get()) {
+                resourceTask.setFilteringCharset(StandardCharsets.UTF_8.name());
+            }
+            final PreprocessorCopyAction copyAction = new PreprocessorCopyAction(resourcesStreamed
+                    , project.provider(extension::getVars)
+                    , extension.removed(extension.getResources())
+                    , project.provider(extension::getIncludeDirs)
+                    , project.provider(extension::getTokens)
+                    , project.provider(extension::getTextExtensions));
+            resourceTask.eachFile(copyAction);
+            copyAction.declareInputs(resourceTask.getInputs());
         });
     }
 
+    private FileCollection RegisterJavaPreprocessor(final Project project, final PreprocessorExtension extension, final SourceSet sourceSet, final TaskProvider<PreprocessorInPlaceTask> inPlaceTask) {
+        return RegisterPreprocessor(project, extension, PreprocessorTask.getJavaTaskName(sourceSet)
+                , sourceSet.getJava().getSourceDirectories()
+                , extension.processDir(sourceSet, "java")
+                , extension.aggregateDir(sourceSet, "java")
+                , extension.removed(extension.getJava())
+                , extension.processed(extension.getJava())
+                , inPlaceTask
+                , "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Java");
+    }
 
-    private void makeDependsOn(Task instance, Task task) {
-        instance.dependsOn(task);
+    private FileCollection RegisterResourcesPreprocessor(final Project project, final PreprocessorExtension extension, final SourceSet sourceSet, final TaskProvider<PreprocessorInPlaceTask> inPlaceTask) {
+        return RegisterPreprocessor(project, extension, PreprocessorTask.getResourceTaskName(sourceSet)
+                , sourceSet.getResources().getSourceDirectories()
+                , extension.processDir(sourceSet, "resources")
+                , extension.aggregateDir(sourceSet, "resources")
+                , extension.removed(extension.getResources())
+                , extension.processed(extension.getResources())
+                , inPlaceTask
+                , "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Resource");
+    }
+
+    private TaskProvider<PreprocessorCompileTask> RegisterCompilePreprocessor(final Project project, final PreprocessorExtension extension, final SourceSet sourceSet, final Provider<Boolean> inMemory, final TaskProvider<PreprocessorInPlaceTask> inPlaceTask) {
+        final TaskProvider<JavaCompile> compileTask = project.getTasks().named(sourceSet.getCompileJavaTaskName(), JavaCompile.class);
+        // Own outputs, so no output is shared with the compile task
+        final Provider<Directory> classesDir = project.getLayout().getBuildDirectory().dir("classes/macro/" + sourceSet.getName());
+        final TaskProvider<PreprocessorCompileTask> compilerTask = project.getTasks().register(PreprocessorCompileTask.getTaskName(sourceSet), PreprocessorCompileTask.class, compiler -> {
+            compiler.setDescription("Apply macro to source code and compile it in memory.");
+            compiler.setGroup("preprocessor");
+            compiler.configure(extension);
+            // Without sources when disabled, so its classes are removed
+            compiler.getSourceDirs().from((Callable<Object>) () -> inMemory.get() ? sourceSet.getJava().getSourceDirectories() : Collections.emptyList());
+            // Same classpath and options as the compile task it replaces
+            compiler.getClasspath().from((Callable<Object>) () -> compileTask.get().getClasspath());
+            compiler.getAnnotationProcessorPath().from((Callable<Object>) () -> compileTask.get().getOptions().getAnnotationProcessorPath());
+            compiler.getCompilerArgs().set(compileTask.map(PreprocessorPlugin::compilerArgs));
+            compiler.getEncoding().set(compileTask.map(task -> task.getOptions().getEncoding()));
+            compiler.getDestinationDir().set(classesDir);
+            compiler.getGeneratedSourcesDir().set(project.getLayout().getBuildDirectory().dir("generated/sources/macroAnnotationProcessor/java/" + sourceSet.getName()));
+            compiler.dependsOn(inPlaceTask);
+            compiler.dependsOn(optionalTask(project, "replacePreprocessor" + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + "Java"));
+        });
+        // Classes compiled in memory are classes of the sourceSet
+        ((ConfigurableFileCollection) sourceSet.getOutput().getClassesDirs()).from(project.files(classesDir).builtBy(compilerTask));
+        return compilerTask;
     }
 
-    private void makeDependsOn(final Project project, Task instance, String taskName) {
-        try {
-            Task task = project.getTasks().getByName(taskName);
-            makeDependsOn(instance, task);
-        } catch (UnknownTaskException ignored) {
+    // Command line options of a compile task
+    private static List<String> compilerArgs(JavaCompile compileTask) {
+        final CompileOptions options = compileTask.getOptions();
+        final List<String> args = new ArrayList<>();
+        if (options.getRelease().isPresent()) {
+            args.add("--release");
+            args.add(String.valueOf(options.getRelease().get()));
+        } else {
+            args.add("-source");
+            args.add(compileTask.getSourceCompatibility());
+            args.add("-target");
+            args.add(compileTask.getTargetCompatibility());
         }
+        if (options.isDebug()) {
+            args.add("-g");
+        }
+        if (options.isDeprecation()) {
+            args.add("-deprecation");
+        }
+        if (!options.isWarnings()) {
+            args.add("-nowarn");
+        }
+        args.addAll(options.getAllCompilerArgs());
+        return args;
     }
 
-    private void makeDependsOn(final Project project, String instanceName, Task task) {
-        try {
-            Task instance = project.getTasks().getByName(instanceName);
-            makeDependsOn(instance, task);
-        } catch (UnknownTaskException ignored) {
+    // Register the preprocessor of a sourceSet type, and return its processed files
+    private FileCollection RegisterPreprocessor(final Project project, final PreprocessorExtension extension, String taskName, final FileCollection srcDirs, final Provider<File> destinationDir, final Provider<File> aggregateDir, final Provider<Boolean> remove, final Provider<Boolean> enabled, final TaskProvider<PreprocessorInPlaceTask> inPlaceTask, String replaceTaskName) {
+        // Shards are cached and scheduled independently, each one with its own output directory
+        final int shards = getShards(project);
+        final List<TaskProvider<PreprocessorTask>> shardTasks = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            final int index = shard;
+            shardTasks.add(project.getTasks().register(shards > 1 ? taskName + "Shard" + shard : taskName, PreprocessorTask.class, preprocessor -> {
+                preprocessor.setDescription("Apply macro to source code.");
+                preprocessor.setGroup("preprocessor");
+                preprocessor.configure(extension);
+                preprocessor.from(srcDirs);
+                preprocessor.getDestinationDir().set(project.getLayout().dir(shards > 1
+                        ? destinationDir.map(dir -> new File(dir, PreprocessorShards.getDirectoryName(index)))
+                        : destinationDir));
+                preprocessor.getRemove().set(remove);
+                preprocessor.getShard().set(index);
+                preprocessor.getShards().set(shards);
+                preprocessor.dependsOn(inPlaceTask);
+                preprocessor.dependsOn(optionalTask(project, replaceTaskName));
+            }));
+        }
+        if (shards > 1) {
+            project.getTasks().register(taskName, task -> {
+                task.setDescription("Apply macro to source code.");
+                task.setGroup("preprocessor");
+                task.dependsOn(shardTasks);
+            });
+        }
+        final FileCollection processed = project.files(shardTasks.toArray());
+
+        // Or process it with all other sourceSets, to other directories so no output has two owners
+        final Provider<Boolean> aggregated = extension.aggregated();
+        final TaskProvider<PreprocessorAggregateTask> aggregateTask = project.getTasks().named(PreprocessorAggregateTask.TASK_ID, PreprocessorAggregateTask.class);
+        aggregateTask.configure(aggregate -> {
+            // Disabled types have no output
+            aggregate.process(project.files((Callable<Object>) () -> enabled.get() ? srcDirs : Collections.emptyList())
+                    , project.provider(() -> enabled.get() ? aggregateDir.get() : null)
+                    , remove);
+            aggregate.dependsOn(inPlaceTask);
+            aggregate.dependsOn(optionalTask(project, replaceTaskName));
+        });
+        final Callable<Object> preprocessorTask = () -> aggregated.get() ? aggregateTask : processed;
+
+        // Also watch the source directories
+        project.getTasks().named(PreprocessorWatchTask.TASK_ID, PreprocessorWatchTask.class, watcher -> {
+            watcher.dependsOn((Callable<Object>) () -> enabled.get() ? preprocessorTask.call() : Collections.emptyList());
+            watcher.getProcessedDirs().addAll(project.provider(() -> {
+                List<PreprocessorWatchTask.ProcessedDirectory> processedDirs = new ArrayList<>();
+                if (enabled.get()) {
+                    for (File srcDir : srcDirs.getFiles()) {
+                        processedDirs.add(new PreprocessorWatchTask.ProcessedDirectory(srcDir, aggregated.get() ? aggregateDir.get() : destinationDir.get(), remove.get(), aggregated.get() ? 1 : shards));
+                    }
+                }
+                return processedDirs;
+            }));
+        });
+        return project.files((Callable<Object>) () -> aggregated.get()
+                ? project.files(aggregateDir).builtBy(aggregateTask)
+                : processed);
+    }
+
+
+    // Number of shards of each preprocessor task, known before the build script is evaluated
+    private static int getShards(final Project project) {
+        Object shards = project.findProperty(PreprocessorShards.PROPERTY);
+        return shards == null ? 1 : Math.max(1, Integer.parseInt(shards.toString().trim()));
+    }
+
+    // Name of a task registered by another plugin, or nothing when it does not exist
+    private Callable<Object> optionalTask(final Project project, final String taskName) {
+        return () -> project.getTasks().getNames().contains(taskName) ? taskName : Collections.emptyList();
+    }
+
+
+    /**
+     * Exclude the original files copied by a task, keeping the processed ones.
+     * Fields are providers so the spec is resolved with the configuration cache.
+     */
+    private static class ProcessedFilesOnly implements Spec<FileTreeElement> {
+        private final Provider<Boolean> enabled;
+        private final Provider<File> processDir;
+
+        ProcessedFilesOnly(Provider<Boolean> enabled, Provider<File> processDir) {
+            this.enabled = enabled;
+            this.processDir = processDir;
+        }
+
+        @Override
+        public boolean isSatisfiedBy(FileTreeElement element) {
+            return enabled.get() && !element.getFile().toPath().startsWith(processDir.get().toPath());
         }
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Order the files to process by estimated cost, largest first, so a large file does not finish last on its own.
+ * The cost of a file is the time it took in the previous run, or its size scaled by the previous speed.
+ * Small files are processed in batches, and small inputs are processed sequentially.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorScheduler {
+
+    /**
+     * Inputs smaller than this number of bytes are processed sequentially
+     */
+    static final long SEQUENTIAL_THRESHOLD = 256 * 1024;
+
+    /**
+     * Files smaller than this number of bytes are processed in batches
+     */
+    static final long BATCH_THRESHOLD = 16 * 1024;
+
+    /**
+     * Maximum number of bytes of a batch
+     */
+    static final long BATCH_SIZE = 256 * 1024;
+
+    // Nanoseconds per byte when nothing was recorded
+    private static final double DEFAULT_SPEED = 20;
+
+    private final Map<String, Timing> previousTimings;
+    private final double speed;
+    private final List<Work> works = new ArrayList<>();
+
+    public PreprocessorScheduler() {
+        this(new HashMap<>());
+    }
+
+    private PreprocessorScheduler(Map<String, Timing> previousTimings) {
+        this.previousTimings = previousTimings;
+        long size = 0;
+        long nanos = 0;
+        for (Timing timing : previousTimings.values()) {
+            size += timing.size;
+            nanos += timing.nanos;
+        }
+        this.speed = size > 0 ? (double) nanos / size : DEFAULT_SPEED;
+    }
+
+    /**
+     * Load the timings of the previous run
+     *
+     * @param timingsFile the file written by the previous run
+     * @return a scheduler using these timings, or sizes only if there is none
+     */
+    public static PreprocessorScheduler load(File timingsFile) {
+        Map<String, Timing> timings = new HashMap<>();
+        if (timingsFile.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(timingsFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    timings.put(fields[0], new Timing(Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            } catch (IOException | RuntimeException e) {
+                // Timings only change the order of the files
+                timings.clear();
+            }
+        }
+        return new PreprocessorScheduler(timings);
+    }
+
+    /**
+     * Add a file to process, thread safe
+     *
+     * @param inFile  the file to process
+     * @param outFile the processed file
+     * @param size    the size of the file
+     */
+    public synchronized void add(File inFile, File outFile, long size) {
+        Timing timing = previousTimings.get(inFile.getPath());
+        // A recorded time is only used while the file keeps its size
+        long cost = timing != null && timing.size == size ? timing.nanos : (long) (size * speed);
+        works.add(new Work(inFile, outFile, size, cost));
+    }
+
+    /**
+     * Process the files, sequentially if they are few, or through a pipeline in the order of their cost
+     *
+     * @param preprocessor the preprocessor to use
+     * @param pipeline     creates the pipeline when the files are processed in parallel
+     * @param timingsFile  where the timings of this run are saved
+     */
+    public void run(Preprocessor preprocessor, Supplier<PreprocessorPipeline> pipeline, File timingsFile) throws IOException {
+        Map<File, Long> timings = new HashMap<>();
+        long total = 0;
+        for (Work work : works) {
+            total += work.size;
+        }
+
+        if (works.size() <= 1 || total < SEQUENTIAL_THRESHOLD) {
+            for (Work work : works) {
+                long start = System.nanoTime();
+                preprocessor.process(work.inFile, work.outFile);
+                timings.put(work.inFile, System.nanoTime() - start);
+            }
+        } else {
+            works.sort(Comparator.comparingLong((Work work) -> work.cost).reversed());
+            Map<File, Long> pipelineTimings;
+            try (PreprocessorPipeline processor = pipeline.get()) {
+                // Filled until the pipeline is closed
+                pipelineTimings = processor.getTimings();
+                List<File> batchIn = new ArrayList<>();
+                List<File> batchOut = new ArrayList<>();
+                long batchSize = 0;
+                for (Work work : works) {
+                    if (work.size >= BATCH_THRESHOLD) {
+                        processor.submit(preprocessor, work.inFile, work.outFile);
+                        continue;
+                    }
+                    batchIn.add(work.inFile);
+                    batchOut.add(work.outFile);
+                    batchSize += work.size;
+                    if (batchSize >= BATCH_SIZE) {
+                        processor.submit(preprocessor, batchIn, batchOut);
+                        batchIn = new ArrayList<>();
+                        batchOut = new ArrayList<>();
+                        batchSize = 0;
+                    }
+                }
+                if (!batchIn.isEmpty()) {
+                    processor.submit(preprocessor, batchIn, batchOut);
+                }
+            }
+            timings.putAll(pipelineTimings);
+        }
+
+        save(timings, timingsFile);
+    }
+
+    private void save(Map<File, Long> timings, File timingsFile) throws IOException {
+        FileUtils.forceMkdirParent(timingsFile);
+        try (BufferedWriter writer = Files.newBufferedWriter(timingsFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Work work : works) {
+                Long nanos = timings.get(work.inFile);
+                if (nanos != null) {
+                    writer.write(work.inFile.getPath() + "\t" + work.size + "\t" + nanos);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    int size() {
+        return works.size();
+    }
+
+    // Files in the order they are submitted
+    List<File> getOrder() {
+        List<File> order = new ArrayList<>();
+        works.stream().sorted(Comparator.comparingLong((Work work) -> work.cost).reversed()).forEach(work -> order.add(work.inFile));
+        return order;
+    }
+
+
+    private static class Timing {
+        private final long size;
+        private final long nanos;
+
+        Timing(long size, long nanos) {
+            this.size = size;
+            this.nanos = nanos;
+        }
+    }
+
+    private static class Work {
+        private final File inFile;
+        private final File outFile;
+        private final long size;
+        private final long cost;
+
+        Work(File inFile, File outFile, long size, long cost) {
+            this.inFile = inFile;
+            this.outFile = outFile;
+            this.size = size;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Split the files of a source directory in stable shards, by the hash of their relative path.
+ * A file stays in its shard until it is moved or renamed.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorShards {
+
+    /**
+     * Gradle property holding the number of shards of each preprocessor task
+     */
+    public static final String PROPERTY = "macroPreprocessor.shards";
+
+    private PreprocessorShards() {
+    }
+
+    public static int getShard(Path relativePath, int shards) {
+        return getShard(relativePath.toString().replace(File.separatorChar, '/'), shards);
+    }
+
+    /**
+     * @param relativePath the path of the file relative to its source directory, with / separators
+     * @param shards       the number of shards
+     * @return the shard of the file
+     */
+    public static int getShard(String relativePath, int shards) {
+        return shards <= 1 ? 0 : Math.floorMod(relativePath.hashCode(), shards);
+    }
+
+    public static String getDirectoryName(int shard) {
+        return "shard" + shard;
+    }
+
+    /**
+     * Directory directives change the processing of files of any shard, they are inputs of every shard
+     *
+     * @param name the name of the file
+     * @return true if the file is an input of every shard
+     */
+    public static boolean isShared(String name) {
+        return name.equals(Preprocessor.DIRECTORY_DIRECTIVE);
+    }
+
+    /**
+     * Fragments included by the files of a shard, directly or through other fragments, whatever their name.
+     * They are inputs of the shard, even when they belong to another shard.
+     *
+     * @param sourceDirs  the source directories
+     * @param includeDirs the directories where included files are searched
+     * @param shard       the shard
+     * @param shards      the number of shards
+     * @param walker      the walker of the source directories
+     * @return the absolute normalized paths of the included fragments
+     */
+    public static Set<File> getIncludedFragments(Collection<File> sourceDirs, List<File> includeDirs, int shard, int shards, SourceTreeWalker walker) throws IOException {
+        Preprocessor preprocessor = new Preprocessor(Collections.emptyMap(), false, includeDirs);
+        Queue<File> files = new ConcurrentLinkedQueue<>();
+        for (File sourceDir : sourceDirs) {
+            Path sourcePath = sourceDir.toPath();
+            walker.walk(sourcePath, (file, attrs) -> {
+                if (getShard(sourcePath.relativize(file), shards) == shard) {
+                    preprocessor.scanIncludes(file.toFile());
+                    files.add(file.toFile());
+                }
+            });
+        }
+        Set<File> fragments = new HashSet<>();
+        for (File file : files) {
+            fragments.addAll(preprocessor.getIncluded(file));
+        }
+        return fragments;
+    }
+}
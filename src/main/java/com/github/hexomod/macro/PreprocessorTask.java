@@ -24,25 +24,37 @@
 package com.github.hexomod.macro;
 
 
-import org.gradle.api.Project;
-import org.gradle.api.Task;
-import org.gradle.api.file.SourceDirectorySet;
-import org.gradle.api.specs.Spec;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.LocalState;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.TaskAction;
-import org.gradle.language.jvm.tasks.ProcessResources;
 import org.gradle.util.GUtil;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 @CacheableTask
-public class PreprocessorTask extends ProcessResources {
+public class PreprocessorTask extends AbstractPreprocessorTask {
 
     public static final String TASK_ID = "macroPreprocessor";
     public static final String TASK_RESOURCE_SUFFIX = "Resource";
@@ -56,68 +68,147 @@ public class PreprocessorTask extends ProcessResources {
         return TASK_ID + (sourceSet.getName() == "main" ? "" : GUtil.toCamelCase(sourceSet.getName())) + TASK_JAVA_SUFFIX;
     }
 
-    private final Project project;
-    private final PreprocessorExtension extension;
-    private SourceSet sourceSet;
+    private final ConfigurableFileCollection sourceDirs;
+    private final DirectoryProperty destinationDir;
+    private final Property<Boolean> remove;
+    private final Property<Integer> shard;
+    private final Property<Integer> shards;
+    private final RegularFileProperty timingsFile;
 
     @Inject
     public PreprocessorTask() {
-        this.project = getProject();
-        this.extension = project.getExtensions().findByType(PreprocessorExtension.class);
-
-        this.getOutputs().upToDateWhen(new Spec<Task>() {
-            @Override
-            public boolean isSatisfiedBy(Task element) {
-                boolean java =sourceSet.getJava().getSrcDirs().contains(getDestinationDir());
-                boolean resources =sourceSet.getResources().getSrcDirs().contains(getDestinationDir());
-                return java && resources;
-            }
-        });
+        this.sourceDirs = getProject().files();
+        this.destinationDir = getProject().getObjects().directoryProperty();
+        this.remove = getProject().getObjects().property(Boolean.class).convention(false);
+        this.shard = getProject().getObjects().property(Integer.class).convention(0);
+        this.shards = getProject().getObjects().property(Integer.class).convention(1);
+        this.timingsFile = getProject().getObjects().fileProperty()
+                .convention(getProject().getLayout().getBuildDirectory().file("preprocessor/" + getName() + ".timings"));
     }
 
-    public void setSourceSet(SourceSet sourceSet) {
-        this.sourceSet = sourceSet;
+    /**
+     * Add source directories
+     *
+     * @param sourceDirs the directories to process
+     */
+    public void from(Object... sourceDirs) {
+        this.sourceDirs.from(sourceDirs);
     }
 
-    protected void copy() {
-        if (sourceSet != null) {
-            super.copy();
+    @InputFiles
+    @SkipWhenEmpty
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public FileTree getSource() {
+        // Only the files of the shard and the fragments they include, so other files do not change its cache key
+        final int shard = this.shard.get();
+        final int shards = this.shards.get();
+        if (shards <= 1) {
+            return sourceDirs.getAsFileTree();
         }
+        final ShardFragments fragments = new ShardFragments(new ArrayList<>(sourceDirs.getFiles()), new ArrayList<>(getIncludeDirs().getFiles()), shard, shards, createWalker());
+        return sourceDirs.getAsFileTree().matching(pattern -> pattern.include(element -> element.isDirectory()
+                || PreprocessorShards.isShared(element.getName())
+                || PreprocessorShards.getShard(element.getRelativePath().getPathString(), shards) == shard
+                || fragments.contains(element.getFile())));
     }
 
-    @TaskAction
-    public void process() throws IOException {
-        if (sourceSet != null) {
-            extension.log("Processing files ...");
-            processSourceSet();
-        }
+    @OutputDirectory
+    public DirectoryProperty getDestinationDir() {
+        return destinationDir;
     }
 
-    private void processSourceSet() throws IOException {
-        extension.log("  Processing sourceSet : " + sourceSet.getName());
+    public void setDestinationDir(File destinationDir) {
+        this.destinationDir.set(destinationDir);
+    }
 
-        if (getName().equals(getJavaTaskName(sourceSet))) {
-            processSourceDirectorySet(sourceSet.getJava(), extension.getRemove() || extension.getJava().getRemove());
-            sourceSet.getJava().setSrcDirs(Collections.singletonList(getDestinationDir()));
-        }
+    @Input
+    public Property<Boolean> getRemove() {
+        return remove;
+    }
+
+    public void setRemove(boolean remove) {
+        this.remove.set(remove);
+    }
 
-        if (getName().equals(getResourceTaskName(sourceSet))) {
-            processSourceDirectorySet(sourceSet.getResources(), extension.getRemove() || extension.getResources().getRemove());
-            sourceSet.getResources().setSrcDirs(Collections.singletonList(getDestinationDir()));
+    @Input
+    public Property<Integer> getShard() {
+        return shard;
+    }
+
+    @Input
+    public Property<Integer> getShards() {
+        return shards;
+    }
+
+    /**
+     * Time spent on each file by the last run, to process the longest files first
+     */
+    @LocalState
+    public RegularFileProperty getTimingsFile() {
+        return timingsFile;
+    }
+
+    @TaskAction
+    public void process() throws IOException {
+        log("Processing files ...");
+
+        // Outputs mirror the sources, without stale files
+        final File destination = destinationDir.get().getAsFile();
+        FileUtils.forceMkdir(destination);
+        FileUtils.cleanDirectory(destination);
+
+        Preprocessor preprocessor = createPreprocessor(remove.get());
+        SourceTreeWalker walker = createWalker();
+        final int shard = this.shard.get();
+        final int shards = this.shards.get();
+
+        // Files are listed first, then processed largest first
+        final PreprocessorScheduler scheduler = PreprocessorScheduler.load(timingsFile.get().getAsFile());
+        for (File sourceDirectory : sourceDirs.getFiles()) {
+            log("    Processing directory : " + sourceDirectory);
+            final Path sourcePath = sourceDirectory.toPath();
+            final Path destinationPath = destination.toPath();
+            walker.walk(sourcePath, directory -> preprocessor.isDirectoryActive(directory.toFile()), (sourceFile, attrs) -> {
+                Path relativePath = sourcePath.relativize(sourceFile);
+                if (PreprocessorShards.getShard(relativePath, shards) != shard) {
+                    return;
+                }
+                log("    Processing " + sourceFile.toString());
+                scheduler.add(sourceFile.toFile(), destinationPath.resolve(relativePath).toFile(), attrs.size());
+            });
         }
+        scheduler.run(preprocessor, this::createPipeline, timingsFile.get().getAsFile());
     }
 
-    private void processSourceDirectorySet(final SourceDirectorySet sourceDirectorySet, boolean remove) throws IOException {
-        extension.log("    Processing directory : " + sourceDirectorySet.getName());
 
-        Preprocessor preprocessor = new Preprocessor(extension.getVars(), remove);
+    /**
+     * Fragments included by the files of a shard, found once, when a file of another shard is first visited
+     */
+    private static class ShardFragments {
+        private final List<File> sourceDirs;
+        private final List<File> includeDirs;
+        private final int shard;
+        private final int shards;
+        private final SourceTreeWalker walker;
+        private Set<File> fragments;
+
+        ShardFragments(List<File> sourceDirs, List<File> includeDirs, int shard, int shards, SourceTreeWalker walker) {
+            this.sourceDirs = sourceDirs;
+            this.includeDirs = includeDirs;
+            this.shard = shard;
+            this.shards = shards;
+            this.walker = walker;
+        }
 
-        for (File sourceDirectory : sourceDirectorySet.getSrcDirs()) {
-            for (File sourceFile : project.fileTree(sourceDirectory)) {
-                extension.log("    Processing " + sourceFile.toString());
-                File processFile = getDestinationDir().toPath().resolve(sourceDirectory.toPath().relativize(sourceFile.toPath())).toFile();
-                preprocessor.process(sourceFile, processFile);
+        synchronized boolean contains(File file) {
+            if (fragments == null) {
+                try {
+                    fragments = PreprocessorShards.getIncludedFragments(sourceDirs, includeDirs, shard, shards, walker);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
+            return fragments.contains(file.getAbsoluteFile().toPath().normalize().toFile());
         }
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.artifacts.transform.CacheableTransform;
+import org.gradle.api.artifacts.transform.InputArtifact;
+import org.gradle.api.artifacts.transform.TransformAction;
+import org.gradle.api.artifacts.transform.TransformOutputs;
+import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Process the entries of a jar or zip dependency, like a sources jar.
+ * Gradle caches the result, so each archive is processed once per machine for the same settings.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+@CacheableTransform
+public abstract class PreprocessorTransform implements TransformAction<PreprocessorTransform.Parameters> {
+
+    /**
+     * Request processed archives by setting this attribute to true on a configuration
+     */
+    public static final Attribute<Boolean> PROCESSED_ATTRIBUTE = Attribute.of("com.github.hexomod.macro.processed", Boolean.class);
+
+    public static final Attribute<String> ARTIFACT_TYPE_ATTRIBUTE = Attribute.of("artifactType", String.class);
+
+    public interface Parameters extends TransformParameters {
+        @Input
+        MapProperty<String, Object> getVars();
+
+        @Input
+        MapProperty<String, String> getTokens();
+
+        @Input
+        SetProperty<String> getTextExtensions();
+
+        @Input
+        Property<Boolean> getRemoveJava();
+
+        @Input
+        Property<Boolean> getRemoveResources();
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.RELATIVE)
+        ConfigurableFileCollection getIncludeDirs();
+    }
+
+    @InputArtifact
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract Provider<FileSystemLocation> getInputArtifact();
+
+    @Override
+    public void transform(TransformOutputs outputs) {
+        File input = getInputArtifact().get().getAsFile();
+        File output = outputs.file(FilenameUtils.getBaseName(input.getName()) + "-processed." + FilenameUtils.getExtension(input.getName()));
+        try {
+            process(input, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to process " + input, e);
+        }
+    }
+
+    private void process(File input, File output) throws IOException {
+        Parameters parameters = getParameters();
+        Preprocessor javaPreprocessor = new Preprocessor(parameters.getVars().get(), parameters.getRemoveJava().get()
+                , new ArrayList<>(parameters.getIncludeDirs().getFiles()), parameters.getTokens().get());
+        javaPreprocessor.setTextExtensions(parameters.getTextExtensions().get());
+        Preprocessor resourcesPreprocessor = new Preprocessor(parameters.getVars().get(), parameters.getRemoveResources().get()
+                , new ArrayList<>(parameters.getIncludeDirs().getFiles()), parameters.getTokens().get());
+        resourcesPreprocessor.setTextExtensions(parameters.getTextExtensions().get());
+
+        try (ZipFile zip = new ZipFile(input)) {
+            // Directory directives are evaluated before the entries of their directory
+            Set<String> inactiveDirs = new HashSet<>();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                // As in the tasks, the root of the tree has no directive
+                if (entry.getName().endsWith("/" + Preprocessor.DIRECTORY_DIRECTIVE)
+                        && !resourcesPreprocessor.isDirectoryActive(IOUtils.readLines(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+                    inactiveDirs.add(entry.getName().substring(0, entry.getName().length() - Preprocessor.DIRECTORY_DIRECTIVE.length()));
+                }
+            }
+
+            // Entries are read, processed and written one at a time
+            try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)))) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (isDirectoryDirective(name) || isInactive(name, inactiveDirs)) {
+                        continue;
+                    }
+                    byte[] content = entry.isDirectory() ? new byte[0] : IOUtils.toByteArray(zip.getInputStream(entry));
+                    if (!entry.isDirectory()) {
+                        content = (name.endsWith(".java") ? javaPreprocessor : resourcesPreprocessor).process(name, content);
+                        // Dropped by a file level directive
+                        if (content == null) {
+                            continue;
+                        }
+                    }
+                    ZipEntry processedEntry = new ZipEntry(name);
+                    processedEntry.setTime(entry.getTime());
+                    out.putNextEntry(processedEntry);
+                    out.write(content);
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    private static boolean isDirectoryDirective(String name) {
+        return name.equals(Preprocessor.DIRECTORY_DIRECTIVE) || name.endsWith("/" + Preprocessor.DIRECTORY_DIRECTIVE);
+    }
+
+    private static boolean isInactive(String name, Set<String> inactiveDirs) {
+        for (String inactiveDir : inactiveDirs) {
+            if (name.startsWith(inactiveDir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
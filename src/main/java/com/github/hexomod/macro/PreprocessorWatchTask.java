@@ -0,0 +1,120 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Long running task keeping preprocessed files up to date while sources are edited.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorWatchTask extends AbstractPreprocessorTask {
+
+    public static final String TASK_ID = "macroPreprocessorWatch";
+
+    /**
+     * Directories processed in place
+     */
+    private final ConfigurableFileCollection inPlaceDirs;
+
+    /**
+     * Directories processed to the process directory
+     */
+    private final ListProperty<ProcessedDirectory> processedDirs;
+
+    @Inject
+    public PreprocessorWatchTask() {
+        this.inPlaceDirs = getProject().files();
+        this.processedDirs = getProject().getObjects().listProperty(ProcessedDirectory.class);
+
+        // Never up to date, the task runs until it is stopped
+        this.getOutputs().upToDateWhen(task -> false);
+    }
+
+    @Internal
+    public ConfigurableFileCollection getInPlaceDirs() {
+        return inPlaceDirs;
+    }
+
+    @Internal
+    public ListProperty<ProcessedDirectory> getProcessedDirs() {
+        return processedDirs;
+    }
+
+    @TaskAction
+    public void watch() throws IOException, InterruptedException {
+        try (PreprocessorWatcher watcher = new PreprocessorWatcher(msg -> getLogger().lifecycle(msg))) {
+            // Same preprocessors as the in place and preprocessor tasks
+            Preprocessor inPlacePreprocessor = createInPlacePreprocessor();
+            for (File sourceDir : inPlaceDirs.getFiles()) {
+                log("  Watching in place : " + sourceDir);
+                watcher.watch(sourceDir, inPlacePreprocessor, null);
+            }
+            Preprocessor preprocessor = createPreprocessor(false);
+            Preprocessor removePreprocessor = createPreprocessor(true);
+            for (ProcessedDirectory processedDir : processedDirs.get()) {
+                log("  Watching : " + processedDir.sourceDir);
+                watcher.watch(processedDir.sourceDir, processedDir.remove ? removePreprocessor : preprocessor, processedDir.processDir, processedDir.shards);
+            }
+            for (File includeDir : getIncludeDirs()) {
+                watcher.watchIncludes(includeDir);
+            }
+            getLogger().lifecycle("Watching source directories, press Ctrl+C to stop.");
+            watcher.run();
+        }
+    }
+
+
+    /**
+     * A source directory processed to an output directory
+     */
+    public static class ProcessedDirectory implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File sourceDir;
+        private final File processDir;
+        private final boolean remove;
+        private final int shards;
+
+        public ProcessedDirectory(File sourceDir, File processDir, boolean remove) {
+            this(sourceDir, processDir, remove, 1);
+        }
+
+        public ProcessedDirectory(File sourceDir, File processDir, boolean remove, int shards) {
+            this.sourceDir = sourceDir;
+            this.processDir = processDir;
+            this.remove = remove;
+            this.shards = shards;
+        }
+    }
+}
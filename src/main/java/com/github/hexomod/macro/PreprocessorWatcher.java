@@ -0,0 +1,302 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keep preprocessed files up to date by watching source directories.
+ * A burst of events is debounced and each changed file is processed once.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PreprocessorWatcher implements Closeable {
+
+    /**
+     * Default quiet period before processing changes (in milliseconds)
+     */
+    public static final long DEFAULT_DEBOUNCE = 50;
+
+    private final WatchService watchService;
+    private final long debounce;
+    private final Consumer<String> logger;
+
+    /**
+     * Watched directories
+     */
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    /**
+     * Source directories with their preprocessor, in registration order
+     */
+    private final List<Target> targets = new ArrayList<>();
+
+    /**
+     * Last modification time of files processed in place
+     */
+    private final Map<Path, Long> inPlaceFiles = new HashMap<>();
+
+    /**
+     * Walk the watched trees, skipping the same files as the preprocessor tasks
+     */
+    private final SourceTreeWalker walker = new SourceTreeWalker();
+
+
+    public PreprocessorWatcher(Consumer<String> logger) throws IOException {
+        this(DEFAULT_DEBOUNCE, logger);
+    }
+
+    public PreprocessorWatcher(long debounce, Consumer<String> logger) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.debounce = debounce;
+        this.logger = logger;
+    }
+
+    /**
+     * Watch a source directory
+     *
+     * @param sourceDirectory the directory to watch
+     * @param preprocessor    the preprocessor to apply to changed files
+     * @param processDirectory the output directory, or null to process files in place
+     */
+    public void watch(File sourceDirectory, Preprocessor preprocessor, File processDirectory) throws IOException {
+        watch(sourceDirectory, preprocessor, processDirectory, 1);
+    }
+
+    /**
+     * Watch a source directory processed in shards
+     *
+     * @param sourceDirectory  the directory to watch
+     * @param preprocessor     the preprocessor to apply to changed files
+     * @param processDirectory the output directory, holding a directory per shard
+     * @param shards           the number of shards
+     */
+    public void watch(File sourceDirectory, Preprocessor preprocessor, File processDirectory, int shards) throws IOException {
+        Path root = sourceDirectory.toPath().toAbsolutePath();
+        targets.add(new Target(root, preprocessor, processDirectory == null ? null : processDirectory.toPath().toAbsolutePath(), shards));
+        if (Files.isDirectory(root) && !keys.containsValue(root)) {
+            register(root);
+        }
+        // Know the files including each fragment before the first change
+        walker.walk(root, (file, attrs) -> preprocessor.scanIncludes(file.toFile()));
+    }
+
+    /**
+     * Watch a directory of included files
+     * Files including a changed file are processed again
+     *
+     * @param includeDirectory the directory to watch
+     */
+    public void watchIncludes(File includeDirectory) throws IOException {
+        Path root = includeDirectory.toPath().toAbsolutePath();
+        if (Files.isDirectory(root) && !keys.containsValue(root)) {
+            register(root);
+        }
+    }
+
+    /**
+     * Process changes until the thread is interrupted or the watcher is closed
+     */
+    public void run() throws IOException, InterruptedException {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changes = new LinkedHashSet<>();
+                // Wait for a first event, then until no more event is received
+                WatchKey key = watchService.take();
+                do {
+                    collect(key, changes);
+                    key = watchService.poll(debounce, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                // Process changed files
+                for (Path file : changes) {
+                    process(file);
+                }
+            }
+        } catch (ClosedWatchServiceException ignored) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+
+    // Excluded directories, like .git, are not watched
+    private void register(Path directory) throws IOException {
+        Collection<Path> directories = new ConcurrentLinkedQueue<>();
+        directories.add(directory);
+        walker.walk(directory, directories::add, (file, attrs) -> {
+        });
+        for (Path subDirectory : directories) {
+            WatchKey key = subDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, subDirectory);
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changes) throws IOException {
+        Path directory = keys.get(key);
+        if (directory != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // Some events were lost, the whole directory is processed
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    collectFiles(directory, changes);
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                // New directories are watched and their files processed
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    if (!walker.isExcluded(directory, path)) {
+                        register(path);
+                        collectFiles(path, changes);
+                    }
+                }
+                // A new directory directive can change the whole directory
+                else if (path.getFileName().toString().equals(Preprocessor.DIRECTORY_DIRECTIVE)) {
+                    collectFiles(directory, changes);
+                } else {
+                    changes.add(path);
+                }
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void collectFiles(Path directory, Set<Path> changes) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Collection<Path> files = new ConcurrentLinkedQueue<>();
+        walker.walk(directory, (file, attrs) -> files.add(file));
+        changes.addAll(files);
+    }
+
+    private void process(Path file) throws IOException {
+        for (Target target : targets) {
+            // Files including the changed file, directly or through other fragments
+            Set<Path> files = new LinkedHashSet<>();
+            files.add(file);
+            for (File includer : target.preprocessor.getIncluders(file.toFile())) {
+                files.add(includer.toPath());
+            }
+            for (Path changedFile : files) {
+                if (!changedFile.startsWith(target.root)) {
+                    continue;
+                }
+                try {
+                    target.process(changedFile);
+                } catch (RuntimeException e) {
+                    // Keep watching, the file will be processed again on next change
+                    logger.accept("    Failed to process " + changedFile + " : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    private class Target {
+
+        private final Path root;
+        private final Preprocessor preprocessor;
+        private final Path processDirectory;
+        private final int shards;
+
+        Target(Path root, Preprocessor preprocessor, Path processDirectory, int shards) {
+            this.root = root;
+            this.preprocessor = preprocessor;
+            this.processDirectory = processDirectory;
+            this.shards = shards;
+        }
+
+        void process(Path file) throws IOException {
+            if (isExcluded(file)) {
+                return;
+            }
+            boolean exists = Files.isRegularFile(file) && isDirectoryActive(file);
+            // In place
+            if (processDirectory == null) {
+                if (!exists) {
+                    return;
+                }
+                // Skip the event triggered by our own write
+                Long lastModified = inPlaceFiles.get(file);
+                if (lastModified != null && lastModified == file.toFile().lastModified()) {
+                    return;
+                }
+                logger.accept("    Processing " + file);
+                preprocessor.process(file.toFile(), file.toFile());
+                inPlaceFiles.put(file, file.toFile().lastModified());
+            }
+            // To the process directory
+            else {
+                Path relativePath = root.relativize(file);
+                File processFile = (shards > 1
+                        ? processDirectory.resolve(PreprocessorShards.getDirectoryName(PreprocessorShards.getShard(relativePath, shards)))
+                        : processDirectory).resolve(relativePath).toFile();
+                if (exists) {
+                    logger.accept("    Processing " + file);
+                    preprocessor.process(file.toFile(), processFile);
+                } else if (!Files.isDirectory(file)) {
+                    logger.accept("    Removing " + processFile);
+                    FileUtils.deleteQuietly(processFile);
+                }
+            }
+        }
+
+        private boolean isExcluded(Path file) {
+            for (Path path = file; path != null && path.startsWith(root) && !path.equals(root); path = path.getParent()) {
+                if (walker.isExcluded(root, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isDirectoryActive(Path file) throws IOException {
+            for (Path directory = file.getParent(); directory != null && directory.startsWith(root) && !directory.equals(root); directory = directory.getParent()) {
+                if (!preprocessor.isDirectoryActive(directory.toFile())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walk a source tree in parallel.
+ * Each directory is listed by its own fork/join task and every regular file
+ * is handed to the visitor as soon as it is discovered.
+ * Sub directories rejected by the filter are not read at all.
+ * Files and directories matching the default excludes (.git, .svn, *~, ...) are skipped like in Gradle file trees,
+ * and directories reached again through a symbolic link are walked only once.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SourceTreeWalker {
+
+    /**
+     * Callback invoked for each regular file of the tree
+     */
+    @FunctionalInterface
+    public interface FileVisitor {
+        void visit(Path file, BasicFileAttributes attrs) throws IOException;
+    }
+
+    /**
+     * Decide if a sub directory must be walked
+     */
+    @FunctionalInterface
+    public interface DirectoryFilter {
+        boolean accept(Path directory) throws IOException;
+    }
+
+    /**
+     * Default excludes of Ant and Gradle, used outside of Gradle
+     */
+    public static final List<String> DEFAULT_EXCLUDES = Arrays.asList(
+            "**/%*%", "**/.#*", "**/._*", "**/#*#", "**/*~", "**/.DS_Store",
+            "**/CVS", "**/CVS/**", "**/.cvsignore", "**/SCCS", "**/SCCS/**", "**/vssver.scc",
+            "**/.bzr", "**/.bzr/**", "**/.bzrignore",
+            "**/.hg", "**/.hg/**", "**/.hgtags", "**/.hgignore", "**/.hgsubstate", "**/.hgsub",
+            "**/.svn", "**/.svn/**",
+            "**/.git", "**/.git/**", "**/.gitattributes", "**/.gitignore", "**/.gitmodules");
+
+    private final ForkJoinPool pool;
+
+    // Excludes matching a file name, and excludes matching a relative path
+    private final List<PathMatcher> nameExcludes = new ArrayList<>();
+    private final List<PathMatcher> pathExcludes = new ArrayList<>();
+
+    public SourceTreeWalker() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public SourceTreeWalker(ForkJoinPool pool) {
+        this(pool, DEFAULT_EXCLUDES);
+    }
+
+    public SourceTreeWalker(ForkJoinPool pool, Collection<String> excludes) {
+        this.pool = pool;
+        for (String exclude : excludes) {
+            String pattern = exclude.replace('\\', '/');
+            // Excluded directories are not walked, so their content is excluded too
+            if (pattern.endsWith("/**")) {
+                pattern = pattern.substring(0, pattern.length() - 3);
+            }
+            if (pattern.startsWith("**/") && pattern.indexOf('/', 3) < 0) {
+                nameExcludes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(3)));
+            } else {
+                pathExcludes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            }
+        }
+    }
+
+    /**
+     * Check if a file or directory matches an exclude
+     *
+     * @param root the root of the tree
+     * @param path a file or directory of the tree
+     * @return true if the path is skipped by the walker
+     */
+    public boolean isExcluded(Path root, Path path) {
+        Path name = path.getFileName();
+        // Files being written in place
+        if (name != null && name.toString().startsWith(Preprocessor.TEMP_PREFIX)) {
+            return true;
+        }
+        for (PathMatcher matcher : nameExcludes) {
+            if (name != null && matcher.matches(name)) {
+                return true;
+            }
+        }
+        if (!pathExcludes.isEmpty()) {
+            Path relativePath = root.relativize(path);
+            for (PathMatcher matcher : pathExcludes) {
+                if (matcher.matches(relativePath)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void walk(Path root, FileVisitor visitor) throws IOException {
+        walk(root, directory -> true, visitor);
+    }
+
+    public void walk(Path root, DirectoryFilter filter, FileVisitor visitor) throws IOException {
+        // Nothing to walk
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try {
+            Set<Object> visited = ConcurrentHashMap.newKeySet();
+            visited.add(getKey(root, Files.readAttributes(root, BasicFileAttributes.class)));
+            pool.invoke(new DirectoryWalk(root, root, filter, visitor, visited));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    // Identity of a directory, the same through symbolic links
+    private static Object getKey(Path directory, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        return key != null ? key : directory.toRealPath();
+    }
+
+
+    private class DirectoryWalk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path directory;
+        private final DirectoryFilter filter;
+        private final FileVisitor visitor;
+        private final Set<Object> visited;
+
+        DirectoryWalk(Path root, Path directory, DirectoryFilter filter, FileVisitor visitor, Set<Object> visited) {
+            this.root = root;
+            this.directory = directory;
+            this.filter = filter;
+            this.visitor = visitor;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryWalk> subDirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (isExcluded(root, entry)) {
+                        continue;
+                    }
+                    // Attributes are read only once per entry
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        // Prune the whole sub tree, or a directory already walked through a link
+                        if (!filter.accept(entry) || !visited.add(getKey(entry, attrs))) {
+                            continue;
+                        }
+                        DirectoryWalk subDirectory = new DirectoryWalk(root, entry, filter, visitor, visited);
+                        subDirectory.fork();
+                        subDirectories.add(subDirectory);
+                    } else if (attrs.isRegularFile()) {
+                        visitor.visit(entry, attrs);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // Wait for sub directories
+            for (DirectoryWalk subDirectory : subDirectories) {
+                subDirectory.join();
+            }
+        }
+    }
+}
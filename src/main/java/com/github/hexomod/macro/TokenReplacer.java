@@ -0,0 +1,137 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replace tokens in a line with a single scan.
+ * Tokens are grouped by their first char, longest first, so a line without any of these chars is returned as is.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class TokenReplacer {
+
+    static final TokenReplacer EMPTY = new TokenReplacer(new LinkedHashMap<>());
+
+    private final Map<String, String> tokens;
+
+    // Distinct first chars of the tokens, and the tokens starting with each of them
+    private final String firstChars;
+    private final String[][] candidates;
+
+    public TokenReplacer(Map<String, ?> tokens) {
+        this.tokens = new LinkedHashMap<>();
+        StringBuilder firstChars = new StringBuilder();
+        List<List<String>> candidates = new ArrayList<>();
+        for (Map.Entry<String, ?> token : tokens.entrySet()) {
+            if (token.getKey().isEmpty()) {
+                continue;
+            }
+            this.tokens.put(token.getKey(), String.valueOf(token.getValue()));
+            int index = firstChars.indexOf(token.getKey().substring(0, 1));
+            if (index < 0) {
+                index = firstChars.length();
+                firstChars.append(token.getKey().charAt(0));
+                candidates.add(new ArrayList<>());
+            }
+            candidates.get(index).add(token.getKey());
+        }
+        this.firstChars = firstChars.toString();
+        this.candidates = new String[candidates.size()][];
+        for (int i = 0; i < candidates.size(); i++) {
+            candidates.get(i).sort(Comparator.comparingInt(String::length).reversed());
+            this.candidates[i] = candidates.get(i).toArray(new String[0]);
+        }
+    }
+
+    public boolean isEmpty() {
+        return tokens.isEmpty();
+    }
+
+    /**
+     * @return true if the text contains one of the tokens
+     */
+    public boolean find(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (match(text, i) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the line with its tokens replaced, or the line itself when it has none
+     */
+    public String replace(String line) {
+        StringBuilder builder = null;
+        int last = 0;
+        int i = 0;
+        while (i < line.length()) {
+            String token = match(line, i);
+            if (token == null) {
+                i++;
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(line.length() + 16);
+            }
+            builder.append(line, last, i).append(tokens.get(token));
+            i += token.length();
+            last = i;
+        }
+        return builder == null ? line : builder.append(line, last, line.length()).toString();
+    }
+
+    // The longest token found at this position
+    private String match(CharSequence text, int position) {
+        int index = firstChars.indexOf(text.charAt(position));
+        if (index < 0) {
+            return null;
+        }
+        for (String token : candidates[index]) {
+            if (regionMatches(text, position, token)) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private static boolean regionMatches(CharSequence text, int position, String token) {
+        if (position + token.length() > text.length()) {
+            return false;
+        }
+        for (int i = 1; i < token.length(); i++) {
+            if (text.charAt(position + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
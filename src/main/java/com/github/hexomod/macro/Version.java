@@ -0,0 +1,115 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A version made of numeric components (ex: 1.16.5).
+ * Missing components are considered as 0, so 1.16 equals 1.16.0.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Version implements Comparable<Version> {
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("\\d+(\\.\\d+)+");
+
+    private final int[] components;
+
+    private Version(int[] components) {
+        this.components = components;
+    }
+
+    /**
+     * Check if a string looks like a version (at least two components)
+     */
+    public static boolean isVersion(String str) {
+        return str != null && VERSION_PATTERN.matcher(str).matches();
+    }
+
+    /**
+     * Parse a version
+     *
+     * @param str the string to parse
+     * @return the version, or null if the string is not made of numeric components
+     */
+    public static Version parse(String str) {
+        if (str == null || !(isVersion(str) || (!str.isEmpty() && str.chars().allMatch(Character::isDigit)))) {
+            return null;
+        }
+        String[] parts = str.split("\\.");
+        int[] components = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                components[i] = Integer.parseInt(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new Version(components);
+    }
+
+    @Override
+    public int compareTo(Version other) {
+        int length = Math.max(components.length, other.components.length);
+        for (int i = 0; i < length; i++) {
+            int compare = Integer.compare(component(i), other.component(i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
+    private int component(int index) {
+        return index < components.length ? components[index] : 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Version && compareTo((Version) obj) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        // Trailing zeros must not change the hash
+        int length = components.length;
+        while (length > 0 && components[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.hashCode(Arrays.copyOf(components, length));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int component : components) {
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            builder.append(component);
+        }
+        return builder.toString();
+    }
+}
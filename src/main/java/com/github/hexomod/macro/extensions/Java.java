@@ -24,10 +24,23 @@
 package com.github.hexomod.macro.extensions;
 
 public class Java extends SourceType {
+
+    // Compile processed sources in memory, without writing them to the process directory
+    private boolean inMemory;
+
     public Java() {
         super();
         setEnable(true);
         setInPlace(false);
         setRemove(false);
+        inMemory = false;
+    }
+
+    public boolean getInMemory() {
+        return inMemory;
+    }
+
+    public void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
     }
 }
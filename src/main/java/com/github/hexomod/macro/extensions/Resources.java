@@ -25,10 +25,23 @@ package com.github.hexomod.macro.extensions;
 
 
 public class Resources extends SourceType {
+
+    // Process resources while processResources copies them, without an intermediate tree
+    private boolean streaming;
+
     public Resources() {
         super();
         setEnable(true);
         setInPlace(true);
         setRemove(true);
+        streaming = false;
+    }
+
+    public boolean getStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PreprocessorShardsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shards_are_stable() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            String path = "com/github/hexomod/File" + i + ".java";
+            int shard = PreprocessorShards.getShard(path, 4);
+            assertEquals(shard, PreprocessorShards.getShard(Paths.get("com", "github", "hexomod", "File" + i + ".java"), 4));
+            counts[shard]++;
+        }
+        // Every shard gets some files
+        for (int count : counts) {
+            assertTrue(count > 150);
+        }
+        assertEquals(0, PreprocessorShards.getShard("any/File.java", 1));
+    }
+
+    @Test
+    public void shared_files() {
+        assertTrue(PreprocessorShards.isShared(Preprocessor.DIRECTORY_DIRECTIVE));
+        assertFalse(PreprocessorShards.isShared("Main.java"));
+    }
+
+    @Test
+    public void included_fragments() throws IOException {
+        File sourceDir = folder.newFolder("src");
+        File includeDir = folder.newFolder("include");
+        // A fragment of the other shard, whatever its name, and its nested fragment
+        String fragment = nameInShard("Fragment", ".txt", 1);
+        String includer = nameInShard("Main", ".java", 0);
+        FileUtils.writeStringToFile(new File(sourceDir, fragment), "//#include license.txt\n//#endinclude\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(includeDir, "license.txt"), "// License\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(sourceDir, includer), "//#include " + fragment + "\n//#endinclude\nclass Main {}\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(sourceDir, nameInShard("Other", ".java", 1)), "class Other {}\n", StandardCharsets.UTF_8);
+
+        Set<File> fragments = PreprocessorShards.getIncludedFragments(Collections.singletonList(sourceDir), Collections.singletonList(includeDir), 0, 2, new SourceTreeWalker());
+        assertEquals(2, fragments.size());
+        assertTrue(fragments.contains(new File(sourceDir, fragment).getAbsoluteFile().toPath().normalize().toFile()));
+        assertTrue(fragments.contains(new File(includeDir, "license.txt").getAbsoluteFile().toPath().normalize().toFile()));
+        assertTrue(PreprocessorShards.getIncludedFragments(Collections.singletonList(sourceDir), Collections.singletonList(includeDir), 1, 2, new SourceTreeWalker()).contains(new File(includeDir, "license.txt").getAbsoluteFile().toPath().normalize().toFile()));
+    }
+
+    private static String nameInShard(String prefix, String extension, int shard) {
+        for (int i = 0; ; i++) {
+            if (PreprocessorShards.getShard(prefix + i + extension, 2) == shard) {
+                return prefix + i + extension;
+            }
+        }
+    }
+}
@@ -23,23 +23,48 @@
  */
 package com.github.hexomod.macro;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
 import org.junit.Test;
-
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.hexomod.macro.Preprocessor.SLASH_KEYWORDS;
 import static org.junit.Assert.*;
 
 public class PreprocessorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private Map<String, Object> vars = new HashMap<String, Object>() {{
         put("VAR_STRING", "value_string");
         put("VAR_BOOL", true);
         put("VAR_INT", 1);
         put("VAR_DOUBLE", 1.32);
+        put("VAR_VERSION", "1.16.5");
+        put("VAR_SHORT_VERSION", "1.9");
     }};
 
     @Test
@@ -112,6 +137,25 @@ public class PreprocessorTest {
         assertTrue(preprocessor.evaluateExpression("VAR_STRING==another string || VAR_INT==1"));
     }
 
+    @Test
+    public void evaluateExpression_version() {
+        Preprocessor preprocessor = new Preprocessor(vars);
+        assertEquals(preprocessor.evaluateVariable("VAR_VERSION"), Version.parse("1.16.5"));
+        assertEquals(preprocessor.evaluateVariable("1.16.5"), Version.parse("1.16.5"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION>=1.16.5"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION>=1.16"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION<1.16.10"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION>1.9"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION!=1.16"));
+        assertFalse(preprocessor.evaluateExpression("VAR_VERSION==1.16.4"));
+        assertTrue(preprocessor.evaluateExpression("VAR_SHORT_VERSION<1.16"));
+        assertTrue(preprocessor.evaluateExpression("VAR_SHORT_VERSION<1.10"));
+        assertTrue(preprocessor.evaluateExpression("VAR_SHORT_VERSION==1.9.0"));
+        assertTrue(preprocessor.evaluateExpression("VAR_SHORT_VERSION<VAR_VERSION"));
+        assertFalse(preprocessor.evaluateExpression("VAR_VERSION==value_string"));
+        assertTrue(preprocessor.evaluateExpression("VAR_VERSION!=value_string"));
+    }
+
     @Test
     public void processLines_simple_if_true() {
 
@@ -440,4 +484,579 @@ public class PreprocessorTest {
         assertTrue(lines.get(4).compareTo(preprocessor.commentLine(testLine1, SLASH_KEYWORDS))==0);
         assertTrue(lines.get(6).compareTo(preprocessor.commentLine(testLine, SLASH_KEYWORDS))==0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void process_file_if_true() throws IOException {
+        File inFile = folder.newFile("in.java");
+        File outFile = new File(folder.getRoot(), "out/in.java");
+        FileUtils.writeStringToFile(inFile, "//#file-if VAR_INT==1\nclass A {}\n", StandardCharsets.UTF_8);
+
+        new Preprocessor(vars).process(inFile, outFile);
+        assertEquals("//#file-if VAR_INT==1\nclass A {}\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+
+        new Preprocessor(vars, true).process(inFile, outFile);
+        assertEquals("class A {}\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void process_file_if_false() throws IOException {
+        File inFile = folder.newFile("in.yml");
+        File outFile = folder.newFile("out.yml");
+        FileUtils.writeStringToFile(inFile, "  ##file-if VAR_BOOL==false\nkey: value\n", StandardCharsets.UTF_8);
+
+        new Preprocessor(vars).process(inFile, outFile);
+        assertFalse(outFile.exists());
+
+        // In place the file is left untouched
+        new Preprocessor(vars).process(inFile, inFile);
+        assertEquals("  ##file-if VAR_BOOL==false\nkey: value\n", FileUtils.readFileToString(inFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void isDirectoryActive() throws IOException {
+        File directory = folder.newFolder("compat");
+        Preprocessor preprocessor = new Preprocessor(vars);
+        assertTrue(preprocessor.isDirectoryActive(directory));
+
+        File directive = new File(directory, Preprocessor.DIRECTORY_DIRECTIVE);
+        FileUtils.writeStringToFile(directive, "# Only for VAR_INT 1\nVAR_INT==1\nVAR_BOOL==true\n", StandardCharsets.UTF_8);
+        assertTrue(preprocessor.isDirectoryActive(directory));
+
+        FileUtils.writeStringToFile(directive, "VAR_INT==1\nVAR_BOOL==false\n", StandardCharsets.UTF_8);
+        assertFalse(preprocessor.isDirectoryActive(directory));
+
+        // The directive itself is never copied
+        File outFile = new File(folder.getRoot(), "out/" + Preprocessor.DIRECTORY_DIRECTIVE);
+        preprocessor.process(directive, outFile);
+        assertFalse(outFile.exists());
+    }
+
+    @Test
+    public void isProcessed() throws IOException {
+        File inFile = folder.newFile("in.java");
+        Preprocessor preprocessor = new Preprocessor(vars);
+
+        FileUtils.writeStringToFile(inFile, "//#if VAR_INT==1\n///active();\n//#else\ninactive();\n//#endif\n", StandardCharsets.UTF_8);
+        assertFalse(preprocessor.isProcessed(inFile));
+
+        preprocessor.process(inFile, inFile);
+        assertTrue(preprocessor.isProcessed(inFile));
+        assertEquals("//#if VAR_INT==1\nactive();\n//#else\n/// inactive();\n//#endif\n", FileUtils.readFileToString(inFile, StandardCharsets.UTF_8));
+
+        // Missing end of line
+        FileUtils.writeStringToFile(inFile, "//#if VAR_INT==1\nactive();\n//#endif", StandardCharsets.UTF_8);
+        assertFalse(preprocessor.isProcessed(inFile));
+
+        // Files without directives are never changed
+        File txtFile = folder.newFile("in.txt");
+        FileUtils.writeStringToFile(txtFile, "text\r\n", StandardCharsets.UTF_8);
+        assertTrue(preprocessor.isProcessed(txtFile));
+    }
+
+    @Test
+    public void process_include() throws IOException {
+        File includeDir = folder.newFolder("include");
+        File fragment = new File(includeDir, "license.inc");
+        FileUtils.writeStringToFile(fragment, "// License\n//#if VAR_INT==1\n// Version 1\n//#endif\n", StandardCharsets.UTF_8);
+        File inFile = folder.newFile("A.java");
+        FileUtils.writeStringToFile(inFile, "//#include license.inc\n//#endinclude\nclass A {}\n", StandardCharsets.UTF_8);
+
+        Preprocessor preprocessor = new Preprocessor(vars, false, Collections.singletonList(includeDir));
+        preprocessor.process(inFile, inFile);
+        String expected = "//#include license.inc\n// License\n//#if VAR_INT==1\n// Version 1\n//#endif\n//#endinclude\nclass A {}\n";
+        assertEquals(expected, FileUtils.readFileToString(inFile, StandardCharsets.UTF_8));
+
+        // Processing again replaces the included lines
+        preprocessor.process(inFile, inFile);
+        assertEquals(expected, FileUtils.readFileToString(inFile, StandardCharsets.UTF_8));
+        assertTrue(preprocessor.isProcessed(inFile));
+        assertTrue(preprocessor.getIncluders(fragment).contains(inFile.getAbsoluteFile()));
+
+        // Directives are removed
+        File outFile = new File(folder.getRoot(), "out/A.java");
+        new Preprocessor(vars, true, Collections.singletonList(includeDir)).process(inFile, outFile);
+        assertEquals("// License\n// Version 1\nclass A {}\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void process_nested_include() throws IOException {
+        File includeDir = folder.newFolder("include");
+        File outer = new File(includeDir, "a.java.inc");
+        File inner = new File(includeDir, "b.java.inc");
+        FileUtils.writeStringToFile(outer, "//#include b.java.inc\n//#endinclude\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(inner, "int b;\n", StandardCharsets.UTF_8);
+        File inFile = folder.newFile("A.java");
+        FileUtils.writeStringToFile(inFile, "//#include a.java.inc\n//#endinclude\n", StandardCharsets.UTF_8);
+        File outFile = new File(folder.getRoot(), "out/A.java");
+
+        Preprocessor preprocessor = new Preprocessor(vars, true, Collections.singletonList(includeDir));
+        preprocessor.process(inFile, outFile);
+        assertEquals("int b;\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+
+        // A change of the nested fragment reaches the files including the outer one
+        FileUtils.writeStringToFile(inner, "int b = 2;\n", StandardCharsets.UTF_8);
+        preprocessor.process(inFile, outFile);
+        assertEquals("int b = 2;\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+        // Files including the outer fragment include the nested one
+        assertTrue(preprocessor.getIncluders(inner).contains(inFile.getAbsoluteFile()));
+    }
+
+    @Test
+    public void getIncluded() throws IOException {
+        File source = folder.newFile("Test.java");
+        File fragment = folder.newFile("a.java.inc");
+        File nested = folder.newFile("b.java.inc");
+        FileUtils.writeStringToFile(source, "//#include a.java.inc\n//#endinclude\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(fragment, "//#include b.java.inc\n//#endinclude\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(nested, "// b\n", StandardCharsets.UTF_8);
+
+        Preprocessor preprocessor = new Preprocessor(vars);
+        preprocessor.process(source, source);
+
+        assertEquals(2, preprocessor.getIncluded(source).size());
+        assertTrue(preprocessor.getIncluded(source).contains(nested.getAbsoluteFile()));
+    }
+
+    @Test(expected = Preprocessor.ParserException.class)
+    public void processLines_include_missing_endinclude() {
+        List<String> lines = new ArrayList<>();
+        lines.add("//#include missing.inc");
+        new Preprocessor(vars).processLines(lines, SLASH_KEYWORDS);
+    }
+
+    @Test
+    public void process_stream() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("class Test {");
+        lines.add("    //#if VAR_INT==1");
+        lines.add("    ///int a = 1;");
+        lines.add("    //#elseif VAR_BOOL");
+        lines.add("    int a = 2;");
+        lines.add("    //#endif");
+        lines.add("    //#ifdef UNDEFINED");
+        lines.add("    int b = 1;");
+        lines.add("    //#endif");
+        lines.add("}");
+        String text = String.join("\r\n", lines);
+
+        for (boolean remove : new boolean[]{false, true}) {
+            Preprocessor preprocessor = new Preprocessor(vars, remove);
+            StringWriter writer = new StringWriter();
+            preprocessor.process(new StringReader(text), writer, "java");
+            // Same lines as processLines, each followed by \n
+            StringBuilder expected = new StringBuilder();
+            for (String line : preprocessor.processLines(lines, SLASH_KEYWORDS)) {
+                expected.append(line).append('\n');
+            }
+            assertEquals(expected.toString(), writer.toString());
+        }
+
+        // Unknown types are copied as is
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Preprocessor(vars).process(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), out, "txt");
+        assertEquals(text, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void processChunks() throws IOException {
+        File includeDir = folder.newFolder("chunks");
+        FileUtils.writeLines(new File(includeDir, "part.inc"), StandardCharsets.UTF_8.toString(), Collections.singletonList("int c = 3;"), "\n");
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            lines.add("int x" + i + " = " + i + ";");
+            lines.add("//#if VAR_INT==" + (i % 3));
+            lines.add("    //#ifdef VAR_BOOL");
+            lines.add("    ///int a = 1;");
+            lines.add("    //#else");
+            lines.add("    int a = 2;");
+            lines.add("    //#endif");
+            lines.add("//#elseif VAR_BOOL");
+            lines.add("int b = 1;");
+            lines.add("//#endif");
+            lines.add("//#include part.inc");
+            lines.add("//#endinclude");
+        }
+        File file = new File(includeDir, "Test.java");
+
+        for (boolean remove : new boolean[]{false, true}) {
+            Preprocessor preprocessor = new Preprocessor(vars, remove);
+            StringWriter writer = new StringWriter();
+            // Smallest chunks, cut at every top level boundary
+            preprocessor.processChunks(new BufferedReader(new StringReader(String.join("\n", lines))), writer, SLASH_KEYWORDS, file, 1);
+            StringBuilder expected = new StringBuilder();
+            for (String line : preprocessor.processLines(lines, SLASH_KEYWORDS, file)) {
+                expected.append(line).append('\n');
+            }
+            assertEquals(expected.toString(), writer.toString());
+        }
+    }
+
+    @Test
+    public void process_reader() throws IOException {
+        String text = "key: value\n##if VAR_INT==2\nkey2: value2\n##endif\n";
+        Preprocessor preprocessor = new Preprocessor(vars, true);
+
+        StringWriter expected = new StringWriter();
+        preprocessor.process(new StringReader(text), expected, "yml");
+        assertEquals(expected.toString(), IOUtils.toString(preprocessor.process(new StringReader(text), "yml")));
+
+        // As used by copy tasks
+        PreprocessorFilterReader filter = new PreprocessorFilterReader(new StringReader(text));
+        filter.setPreprocessor(preprocessor);
+        filter.setKeywords(Preprocessor.HASH_KEYWORDS);
+        assertEquals(expected.toString(), IOUtils.toString(filter));
+
+        filter = new PreprocessorFilterReader(new StringReader("##file-if VAR_BOOL==true\nkey: value\n"));
+        filter.setSkipFirstLine(true);
+        assertEquals("key: value\n", IOUtils.toString(filter));
+    }
+
+    @Test
+    public void replace_tokens() throws IOException {
+        Map<String, String> tokens = new HashMap<>();
+        tokens.put("@HELLO@", "world");
+        tokens.put("@HELLO@@", "longest");
+        tokens.put("@GRADLE@", "gradle");
+        Preprocessor preprocessor = new Preprocessor(vars, false, Collections.emptyList(), tokens);
+
+        // Only active lines are replaced
+        String text = "String a = \"@HELLO@ @GRADLE@\";\n//#if VAR_INT==2\n///String b = \"@HELLO@\";\n//#endif\nString c = \"@HELLO@@\";\n";
+        StringWriter writer = new StringWriter();
+        preprocessor.process(new StringReader(text), writer, "java");
+        assertEquals("String a = \"world gradle\";\n//#if VAR_INT==2\n///String b = \"@HELLO@\";\n//#endif\nString c = \"longest\";\n", writer.toString());
+
+        // Files without keywords are only replaced when they contain a token
+        assertEquals("a world\n", new String(preprocessor.processContent(new File("test.txt"), "a @HELLO@\n".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertNull(preprocessor.processContent(new File("test.txt"), "a @HELLO\n".getBytes(StandardCharsets.UTF_8)));
+
+        TokenReplacer replacer = new TokenReplacer(tokens);
+        assertTrue(replacer.find("x@GRADLE@"));
+        assertFalse(replacer.find("x@GRADLE"));
+        assertSame("nothing", replacer.replace("nothing"));
+    }
+
+    @Test
+    public void replace_tokens_text_only() throws IOException {
+        Preprocessor preprocessor = new Preprocessor(vars, false, Collections.emptyList(), Collections.singletonMap("@HELLO@", "world"));
+
+        // A binary file, not valid UTF-8, is copied as is even with a token
+        byte[] binary = ArrayUtils.addAll(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, (byte) 0xFF}, "@HELLO@\r\n".getBytes(StandardCharsets.US_ASCII));
+        File inFile = folder.newFile("test.class");
+        File outFile = new File(folder.getRoot(), "out/test.class");
+        FileUtils.writeByteArrayToFile(inFile, binary);
+        assertFalse(preprocessor.containsTokens(inFile));
+        preprocessor.process(inFile, outFile);
+        assertArrayEquals(binary, FileUtils.readFileToByteArray(outFile));
+        assertArrayEquals(binary, preprocessor.process("test.class", binary));
+
+        // Other text types are configured by their extension
+        byte[] text = "a @HELLO@\n".getBytes(StandardCharsets.UTF_8);
+        assertNull(preprocessor.processContent(new File("test.tpl"), text));
+        preprocessor.setTextExtensions(Collections.singleton("tpl"));
+        assertEquals("a world\n", new String(preprocessor.processContent(new File("test.tpl"), text), StandardCharsets.UTF_8));
+        assertNull(preprocessor.processContent(new File("test.txt"), text));
+    }
+
+    @Test
+    public void lazy_vars() {
+        AtomicInteger resolved = new AtomicInteger();
+        Map<String, Object> lazyVars = new HashMap<>(vars);
+        lazyVars.put("LAZY_VERSION", new LazyVar(lazyVars, v -> {
+            resolved.incrementAndGet();
+            return "1.16.5";
+        }));
+        lazyVars.put("DERIVED", new LazyVar(lazyVars, v -> "1.16.5".equals(v.get("LAZY_VERSION"))));
+        lazyVars.put("UNUSED", new LazyVar(lazyVars, v -> {
+            throw new IllegalStateException("Not referenced");
+        }));
+        lazyVars.put("CYCLE", new LazyVar(lazyVars, v -> v.get("CYCLE")));
+        Preprocessor preprocessor = new Preprocessor(lazyVars);
+
+        // Computed once, when first referenced
+        assertEquals(0, resolved.get());
+        assertTrue(preprocessor.evaluateExpression("LAZY_VERSION>=1.12.2"));
+        assertTrue(preprocessor.evaluateExpression("LAZY_VERSION<1.16.10"));
+        assertTrue(preprocessor.evaluateExpression("DERIVED==true"));
+        assertEquals(1, resolved.get());
+
+        try {
+            preprocessor.evaluateExpression("CYCLE==1");
+            fail();
+        } catch (IllegalStateException expected) {
+            // A variable can not depend on itself
+        }
+    }
+
+    @Test
+    public void command_line_vars() {
+        Map<String, Object> cliVars = new HashMap<>();
+        cliVars.put("MC", PreprocessorMain.parseVar("1.16"));
+        cliVars.put("COUNT", PreprocessorMain.parseVar("2"));
+        cliVars.put("DEBUG", PreprocessorMain.parseVar("true"));
+        Preprocessor preprocessor = new Preprocessor(cliVars);
+
+        // Versions are compared as in Gradle, not as numbers
+        assertTrue(preprocessor.evaluateExpression("MC>=1.9"));
+        assertTrue(preprocessor.evaluateExpression("COUNT>1"));
+        assertTrue(preprocessor.evaluateExpression("DEBUG==true"));
+    }
+
+    @Test
+    public void process_entry() {
+        Preprocessor preprocessor = new Preprocessor(vars, true);
+
+        byte[] java = "//#if VAR_INT==2\nint a;\n//#else\n///int b;\n//#endif\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals("int b;\n", new String(preprocessor.process("com/test/Test.java", java), StandardCharsets.UTF_8));
+
+        // Entries are decided by their file level directive
+        assertNull(preprocessor.process("test.yml", "##file-if VAR_INT==2\nkey: value\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("key: value\n", new String(preprocessor.process("test.yml", "##file-if VAR_INT==1\nkey: value\n".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+
+        // Other entries are kept as is
+        byte[] binary = new byte[]{0, 1, 2};
+        assertSame(binary, preprocessor.process("test.bin", binary));
+
+        assertTrue(preprocessor.isDirectoryActive(Arrays.asList("# comment", "VAR_INT==1")));
+        assertFalse(preprocessor.isDirectoryActive(Arrays.asList("VAR_INT==1", "VAR_BOOL==false")));
+    }
+
+    @Test
+    public void process_entry_include() throws IOException {
+        File includeDir = folder.newFolder("include");
+        File fragment = new File(includeDir, "license.inc");
+        FileUtils.writeStringToFile(fragment, "// License\n", StandardCharsets.UTF_8);
+        // Not an include directory, even where the entry name points
+        File entryDir = folder.newFolder("com");
+        FileUtils.writeStringToFile(new File(entryDir, "license.inc"), "// Other\n", StandardCharsets.UTF_8);
+
+        Preprocessor preprocessor = new Preprocessor(vars, true, Collections.singletonList(includeDir));
+        byte[] java = "//#include license.inc\n//#endinclude\nclass A {}\n".getBytes(StandardCharsets.UTF_8);
+        String name = new File(entryDir, "A.java").getPath();
+        assertEquals("// License\nclass A {}\n", new String(preprocessor.process(name, java), StandardCharsets.UTF_8));
+        // An entry is not a file including the fragment
+        assertTrue(preprocessor.getIncluders(fragment).isEmpty());
+    }
+
+    @Test
+    public void watcher_reprocess_includers() throws Exception {
+        File includeDir = folder.newFolder("include");
+        File fragment = new File(includeDir, "license.inc");
+        FileUtils.writeStringToFile(fragment, "// License\n", StandardCharsets.UTF_8);
+        File source = folder.newFolder("src");
+        FileUtils.writeStringToFile(new File(source, "A.java"), "//#include license.inc\n//#endinclude\nclass A {}\n", StandardCharsets.UTF_8);
+        File outFile = new File(folder.getRoot(), "out/A.java");
+
+        Preprocessor preprocessor = new Preprocessor(vars, true, Collections.singletonList(includeDir));
+        try (PreprocessorWatcher watcher = new PreprocessorWatcher(msg -> {
+        })) {
+            watcher.watch(source, preprocessor, outFile.getParentFile());
+            watcher.watchIncludes(includeDir);
+            Thread thread = new Thread(() -> {
+                try {
+                    watcher.run();
+                } catch (Exception ignored) {
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            // The fragment is changed before its includer was ever processed
+            FileUtils.writeStringToFile(fragment, "// New license\n", StandardCharsets.UTF_8);
+            for (int i = 0; i < 100 && !(outFile.isFile() && FileUtils.readFileToString(outFile, StandardCharsets.UTF_8).contains("New")); i++) {
+                Thread.sleep(100);
+            }
+        }
+        assertEquals("// New license\nclass A {}\n", FileUtils.readFileToString(outFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void pipeline_same_as_process() throws IOException {
+        File source = folder.newFolder("src");
+        File piped = folder.newFolder("piped");
+        File processed = folder.newFolder("processed");
+        for (int i = 0; i < 20; i++) {
+            FileUtils.writeLines(new File(source, "File" + i + ".java"), StandardCharsets.UTF_8.toString(), Arrays.asList(
+                    "//#if VAR_BOOL==true", "///int debug = " + i + ";", "//#else", "int debug = 0;", "//#endif"), "\n");
+            FileUtils.writeStringToFile(new File(source, "file" + i + ".txt"), "text " + i, StandardCharsets.UTF_8);
+        }
+        FileUtils.writeStringToFile(new File(source, "skipped.java"), "//#file-if VAR_BOOL==false\nint a;\n", StandardCharsets.UTF_8);
+
+        Preprocessor preprocessor = new Preprocessor(vars, true);
+        // Small in flight limit, to block on submit
+        try (PreprocessorPipeline pipeline = new PreprocessorPipeline(ForkJoinPool.commonPool(), 2, 64)) {
+            for (File file : source.listFiles()) {
+                pipeline.submit(preprocessor, file, new File(piped, file.getName()));
+            }
+        }
+        for (File file : source.listFiles()) {
+            preprocessor.process(file, new File(processed, file.getName()));
+        }
+
+        assertFalse(new File(piped, "skipped.java").exists());
+        assertEquals(40, piped.listFiles().length);
+        for (File file : processed.listFiles()) {
+            assertEquals(FileUtils.readFileToString(file, StandardCharsets.UTF_8), FileUtils.readFileToString(new File(piped, file.getName()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void pipeline_in_place() throws IOException {
+        File file = folder.newFile("Test.java");
+        FileUtils.writeLines(file, StandardCharsets.UTF_8.toString(), Arrays.asList("//#if VAR_BOOL==true", "///int debug = 1;", "//#endif"), "\n");
+
+        try (PreprocessorPipeline pipeline = new PreprocessorPipeline()) {
+            pipeline.submit(new Preprocessor(vars), file, file);
+        }
+
+        assertEquals("//#if VAR_BOOL==true\nint debug = 1;\n//#endif\n", FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        // The temporary file replaced the file
+        assertEquals(1, folder.getRoot().listFiles().length);
+    }
+
+    @Test(expected = Preprocessor.ParserException.class)
+    public void pipeline_close_throw_failure() throws IOException {
+        File file = folder.newFile("Test.java");
+        FileUtils.writeStringToFile(file, "//#endinclude\n", StandardCharsets.UTF_8);
+
+        try (PreprocessorPipeline pipeline = new PreprocessorPipeline()) {
+            pipeline.submit(new Preprocessor(vars), file, folder.newFile("Out.java"));
+        }
+    }
+
+    @Test(expected = StackOverflowError.class)
+    public void pipeline_close_throw_error() throws IOException {
+        File file = folder.newFile("Test.java");
+        FileUtils.writeStringToFile(file, "//#if VAR_BOOL==true\n//#endif\n", StandardCharsets.UTF_8);
+        Preprocessor preprocessor = new Preprocessor(vars) {
+            @Override
+            byte[] processContent(File inFile, byte[] content) {
+                throw new StackOverflowError();
+            }
+        };
+
+        // The error does not leave the other stages waiting
+        try (PreprocessorPipeline pipeline = new PreprocessorPipeline()) {
+            pipeline.submit(preprocessor, file, folder.newFile("Out.java"));
+        }
+    }
+
+    @Test
+    public void scheduler_run_largest_first() throws IOException {
+        File source = folder.newFolder("src");
+        File processed = folder.newFolder("processed");
+        File timings = new File(folder.getRoot(), "build/test.timings");
+        // Many tiny files, batched, and a few large ones
+        for (int i = 0; i < 100; i++) {
+            FileUtils.writeStringToFile(new File(source, "Small" + i + ".java"), "//#if VAR_BOOL==true\n///int a = " + i + ";\n//#endif\n", StandardCharsets.UTF_8);
+        }
+        for (int i = 1; i <= 3; i++) {
+            FileUtils.writeStringToFile(new File(source, "Large" + i + ".java"), StringUtils.repeat("int a;\n", 20000 * i), StandardCharsets.UTF_8);
+        }
+
+        PreprocessorScheduler scheduler = PreprocessorScheduler.load(timings);
+        for (File file : source.listFiles()) {
+            scheduler.add(file, new File(processed, file.getName()), file.length());
+        }
+        List<File> order = scheduler.getOrder();
+        assertEquals("Large3.java", order.get(0).getName());
+        assertEquals("Large1.java", order.get(2).getName());
+
+        Preprocessor preprocessor = new Preprocessor(vars, true);
+        scheduler.run(preprocessor, () -> new PreprocessorPipeline(ForkJoinPool.commonPool(), 2, PreprocessorPipeline.DEFAULT_MAX_IN_FLIGHT), timings);
+        assertEquals("int a = 42;\n", FileUtils.readFileToString(new File(processed, "Small42.java"), StandardCharsets.UTF_8));
+        assertEquals(new File(source, "Large2.java").length(), new File(processed, "Large2.java").length());
+
+        // Timings of every file are recorded for the next run
+        assertEquals(103, FileUtils.readLines(timings, StandardCharsets.UTF_8).size());
+        PreprocessorScheduler next = PreprocessorScheduler.load(timings);
+        for (File file : source.listFiles()) {
+            next.add(file, new File(processed, file.getName()), file.length());
+        }
+        assertEquals(103, next.size());
+    }
+
+    @Test
+    public void scheduler_run_small_input_sequentially() throws IOException {
+        File source = folder.newFile("Test.java");
+        File processed = new File(folder.getRoot(), "processed/Test.java");
+        FileUtils.writeStringToFile(source, "//#if VAR_BOOL==false\nint a;\n//#endif\n", StandardCharsets.UTF_8);
+
+        PreprocessorScheduler scheduler = new PreprocessorScheduler();
+        scheduler.add(source, processed, source.length());
+        scheduler.run(new Preprocessor(vars, true), () -> {
+            throw new AssertionError("No pipeline for small inputs");
+        }, new File(folder.getRoot(), "test.timings"));
+
+        assertEquals("", FileUtils.readFileToString(processed, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void manifest_keep_unchanged_files() throws IOException {
+        File source = folder.newFile("Test.java");
+        File fragment = folder.newFile("license.java.inc");
+        File manifestFile = new File(folder.getRoot(), "build/test.manifest");
+        FileUtils.writeStringToFile(source, "class Test {}\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(fragment, "// license\n", StandardCharsets.UTF_8);
+
+        String fingerprint = PreprocessorManifest.fingerprint(vars, Collections.emptyList());
+        PreprocessorManifest manifest = new PreprocessorManifest(fingerprint);
+        manifest.record(source, Collections.singleton(fragment));
+        manifest.save(manifestFile);
+
+        // Same file
+        PreprocessorManifest previous = PreprocessorManifest.load(manifestFile, fingerprint);
+        assertTrue(new PreprocessorManifest(fingerprint).keep(previous, source, attributes(source)));
+
+        // Same content with another modification time
+        assertTrue(source.setLastModified(source.lastModified() - 10000));
+        assertTrue(new PreprocessorManifest(fingerprint).keep(previous, source, attributes(source)));
+
+        // Other settings
+        vars.put("VAR_BOOL", false);
+        PreprocessorManifest other = PreprocessorManifest.load(manifestFile, PreprocessorManifest.fingerprint(vars, Collections.emptyList()));
+        assertEquals(0, other.size());
+
+        // Changed fragment
+        FileUtils.writeStringToFile(fragment, "// new license\n", StandardCharsets.UTF_8);
+        assertFalse(new PreprocessorManifest(fingerprint).keep(previous, source, attributes(source)));
+
+        // Changed file
+        FileUtils.writeStringToFile(source, "class Test { }\n", StandardCharsets.UTF_8);
+        assertFalse(new PreprocessorManifest(fingerprint).keep(previous, source, attributes(source)));
+    }
+
+    @Test
+    public void passThrough_remember_directive_free_files() throws IOException {
+        File plain = folder.newFile("Plain.java");
+        File macro = folder.newFile("Macro.java");
+        FileUtils.writeStringToFile(plain, "class Plain {}\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(macro, "//#ifdef VAR_BOOL\nclass Macro {}\n//#endif\n", StandardCharsets.UTF_8);
+
+        PassThroughCache cache = new PassThroughCache();
+        Preprocessor preprocessor = new Preprocessor(vars, false);
+        preprocessor.setPassThroughCache(cache);
+        preprocessor.process(plain, new File(folder.getRoot(), "out/Plain.java"));
+        preprocessor.process(macro, new File(folder.getRoot(), "out/Macro.java"));
+
+        // Without extended attributes, every file is processed
+        if (!cache.isSupported()) {
+            assertFalse(cache.isPassThrough(plain));
+            return;
+        }
+        assertTrue(cache.isPassThrough(plain));
+        assertFalse(cache.isPassThrough(macro));
+
+        // Same content with another modification time
+        assertTrue(plain.setLastModified(plain.lastModified() - 10000));
+        assertTrue(cache.isPassThrough(plain));
+
+        // Changed content
+        FileUtils.writeStringToFile(plain, "//#ifdef VAR_BOOL\nclass Plain {}\n//#endif\n", StandardCharsets.UTF_8);
+        assertFalse(cache.isPassThrough(plain));
+    }
+
+    private static BasicFileAttributes attributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+}
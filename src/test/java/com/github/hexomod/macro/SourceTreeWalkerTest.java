@@ -0,0 +1,117 @@
+/*
+ * This file is part of MacroPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.macro.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.hexomod.macro;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class SourceTreeWalkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void walk_visit_all_files() throws IOException {
+        File root = folder.newFolder("src");
+        for (int i = 0; i < 5; i++) {
+            File dir = new File(root, "a/b" + i);
+            assertTrue(dir.mkdirs());
+            for (int j = 0; j < 10; j++) {
+                assertTrue(new File(dir, "file" + j + ".txt").createNewFile());
+            }
+        }
+        assertTrue(new File(root, "root.txt").createNewFile());
+
+        Set<Path> visited = ConcurrentHashMap.newKeySet();
+        new SourceTreeWalker().walk(root.toPath(), (file, attrs) -> {
+            assertTrue(attrs.isRegularFile());
+            visited.add(root.toPath().relativize(file));
+        });
+
+        assertEquals(51, visited.size());
+        assertTrue(visited.contains(Paths.get("a", "b3", "file7.txt")));
+        assertTrue(visited.contains(Paths.get("root.txt")));
+    }
+
+    @Test
+    public void walk_prune_directories() throws IOException {
+        File root = folder.newFolder("src");
+        assertTrue(new File(root, "keep/sub").mkdirs());
+        assertTrue(new File(root, "prune/sub").mkdirs());
+        assertTrue(new File(root, "keep/sub/file.txt").createNewFile());
+        assertTrue(new File(root, "prune/sub/file.txt").createNewFile());
+
+        Set<Path> visited = ConcurrentHashMap.newKeySet();
+        new SourceTreeWalker().walk(root.toPath(), directory -> !directory.endsWith("prune"), (file, attrs) -> visited.add(root.toPath().relativize(file)));
+
+        assertEquals(1, visited.size());
+        assertTrue(visited.contains(Paths.get("keep", "sub", "file.txt")));
+    }
+
+    @Test
+    public void walk_skip_excludes_and_links() throws IOException {
+        File root = folder.newFolder("src");
+        assertTrue(new File(root, ".git/objects").mkdirs());
+        assertTrue(new File(root, ".git/objects/file").createNewFile());
+        assertTrue(new File(root, ".gitignore").createNewFile());
+        assertTrue(new File(root, "a/Test.java~").getParentFile().mkdirs());
+        assertTrue(new File(root, "a/Test.java~").createNewFile());
+        assertTrue(new File(root, "a/Test.java").createNewFile());
+        // A link back to the root
+        Files.createSymbolicLink(new File(root, "a/loop").toPath(), root.toPath());
+
+        Set<Path> visited = ConcurrentHashMap.newKeySet();
+        new SourceTreeWalker().walk(root.toPath(), (file, attrs) -> visited.add(root.toPath().relativize(file)));
+
+        assertEquals(1, visited.size());
+        assertTrue(visited.contains(Paths.get("a", "Test.java")));
+    }
+
+    @Test
+    public void walk_missing_directory() throws IOException {
+        File root = new File(folder.getRoot(), "missing");
+        new SourceTreeWalker().walk(root.toPath(), (file, attrs) -> fail("No file expected"));
+    }
+
+    @Test(expected = IOException.class)
+    public void walk_propagate_io_exception() throws IOException {
+        File root = folder.newFolder("src");
+        assertTrue(new File(root, "sub").mkdirs());
+        assertTrue(new File(root, "sub/file.txt").createNewFile());
+        new SourceTreeWalker().walk(root.toPath(), (file, attrs) -> {
+            throw new IOException("Failed to process " + file);
+        });
+    }
+}